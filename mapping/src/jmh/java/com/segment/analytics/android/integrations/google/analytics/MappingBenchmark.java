@@ -0,0 +1,167 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.HitType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link HitMapper} alone, on a plain JVM: no Android classes, no Segment payloads
+ * and no trackers, so profilers only see the mapping hot path. Hits go to a sink that keeps their
+ * parameter count, so they can't be optimized away.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+  static final int CUSTOM_DIMENSIONS = 20;
+
+  HitMapper mapper;
+  long params;
+
+  Map<String, Object> plainProperties;
+  Map<String, Object> customDimensionProperties;
+  Map<String, Object> campaign;
+  Map<String, Object> deepLinkProperties;
+  Map<String, Object> traits;
+
+  @Setup public void setUp() {
+    Map<String, Object> dimensions = new HashMap<>();
+    for (int i = 1; i <= CUSTOM_DIMENSIONS; i++) {
+      dimensions.put("dimension_property_" + i, "dimension" + i);
+    }
+    Map<String, Object> metrics = new HashMap<>();
+    metrics.put("score", "metric1");
+    Map<String, Object> settings = new HashMap<>();
+    settings.put("sendUserId", true);
+    settings.put("dimensions", dimensions);
+    settings.put("metrics", metrics);
+    settings.put("batchProductEvents", true);
+    mapper = new HitMapper(settings, new HitSink() {
+      @Override public void send(HitType type, Map<String, String> hit,
+          Map<String, Object> properties, List<? extends Map<String, Object>> products) {
+        params += hit.size();
+      }
+
+      @Override public void setScreenName(String screenName) {
+      }
+
+      @Override public boolean needsProducts() {
+        return false;
+      }
+    }, new IntegrationMetrics(), MappingLogger.NONE);
+
+    plainProperties = new HashMap<>();
+    plainProperties.put("category", "engagement");
+    plainProperties.put("label", "hero");
+    plainProperties.put("button_color", "blue");
+    plainProperties.put("position", 3);
+
+    customDimensionProperties = new HashMap<>(plainProperties);
+    for (int i = 1; i <= CUSTOM_DIMENSIONS; i++) {
+      customDimensionProperties.put("dimension_property_" + i, "value " + i);
+    }
+    customDimensionProperties.put("score", 42);
+
+    campaign = new HashMap<>();
+    campaign.put("source", "newsletter");
+    campaign.put("medium", "email");
+    campaign.put("name", "spring_sale");
+    campaign.put("content", "hero_banner");
+
+    deepLinkProperties = new HashMap<>();
+    deepLinkProperties.put("url",
+        "app://open/sale?utm_source=newsletter&utm_medium=email&utm_campaign=spring_sale"
+            + "&utm_content=hero_banner&gclid=EAIaIQobChMI");
+
+    traits = new HashMap<>();
+    for (int i = 1; i <= CUSTOM_DIMENSIONS; i++) {
+      traits.put("dimension_property_" + i, "trait " + i);
+    }
+  }
+
+  @Benchmark public long trackPlain() {
+    mapper.mapTrack("Button Clicked", plainProperties, null);
+    return params;
+  }
+
+  @Benchmark public long trackCustomDimensions() {
+    mapper.mapTrack("Button Clicked", customDimensionProperties, null);
+    return params;
+  }
+
+  @Benchmark public long trackCampaign() {
+    mapper.mapTrack("Button Clicked", plainProperties, campaign);
+    return params;
+  }
+
+  @Benchmark public long trackDeepLink() {
+    mapper.mapTrack("Deep Link Opened", deepLinkProperties, null);
+    return params;
+  }
+
+  @Benchmark public long screenCampaign() {
+    mapper.mapScreen("Home", null, plainProperties, campaign);
+    return params;
+  }
+
+  @Benchmark public long identify() {
+    return mapper.userParameters("user-1", traits, mapper.customDimensions, mapper.customMetrics)
+        .size();
+  }
+
+  @Benchmark public long orderCompleted(Order order) {
+    mapper.mapTrack("Order Completed", order.properties, null);
+    return params;
+  }
+
+  @Benchmark public long productAddedBatched(Order order) {
+    mapper.mapTrack("Product Added", order.properties, null);
+    return params;
+  }
+
+  /** An order of {@code productCount} products, each with a mapped custom dimension. */
+  @State(Scope.Thread)
+  public static class Order {
+    @Param({"1", "10", "100"})
+    int productCount;
+
+    Map<String, Object> properties;
+
+    @Setup public void setUp() {
+      List<Map<String, Object>> products = new ArrayList<>(productCount);
+      for (int i = 0; i < productCount; i++) {
+        Map<String, Object> product = new HashMap<>();
+        product.put("id", "product-" + i);
+        product.put("sku", "sku-" + i);
+        product.put("name", "Product " + i);
+        product.put("price", 9.99 + i);
+        product.put("quantity", 1 + i % 3);
+        product.put("dimension_property_1", "variant " + i);
+        products.add(product);
+      }
+      properties = new HashMap<>();
+      properties.put("orderId", "order-1");
+      properties.put("total", 99.5);
+      properties.put("tax", 7.5);
+      properties.put("shipping", 4.0);
+      properties.put("products", products);
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.segment.analytics.android.integrations.google.analytics.Values.getString;
+
+/**
+ * The campaign parameters ({@code &cs}, {@code &cm}, {@code &cn}, {@code &cc}, ...) Google
+ * Analytics extracts from a campaign URL, resolved once and applied directly to each hit.
+ *
+ * URLs are parsed and built in plain Java, without {@code android.net.Uri}, the same way {@code
+ * HitBuilder.setCampaignParamsFromUrl} and {@code Uri.Builder} do.
+ */
+final class CampaignParams {
+  static final CampaignParams EMPTY = new CampaignParams(new String[0], new String[0]);
+
+  /** Query parameters of a campaign URL, and the hit parameter each one is sent as. */
+  private static final String[] URL_KEYS = {
+      "utm_content", "utm_medium", "utm_campaign", "utm_source", "utm_term", "utm_id", "anid",
+      "gclid", "dclid", "aclid", "gmob_t"
+  };
+  private static final String[] HIT_KEYS = {
+      "&cc", "&cm", "&cn", "&cs", "&ck", "&ci", "&anid", "&gclid", "&dclid", "&aclid", "&gmob_t"
+  };
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private final String[] keys;
+  private final String[] values;
+
+  private CampaignParams(String[] keys, String[] values) {
+    this.keys = keys;
+    this.values = values;
+  }
+
+  /**
+   * Extract the parameters Google Analytics would set for {@code url}. A URL with a query sets
+   * every campaign parameter, those it doesn't contain to {@code null}.
+   */
+  static CampaignParams fromUrl(String url) {
+    String query = query(url);
+    if (query == null || query.isEmpty()) {
+      return EMPTY;
+    }
+    Map<String, String> params = params(query);
+    String[] values = new String[URL_KEYS.length];
+    for (int i = 0; i < URL_KEYS.length; i++) {
+      values[i] = params.get(URL_KEYS[i]);
+    }
+    return new CampaignParams(HIT_KEYS, values);
+  }
+
+  // e.g. "app://open?utm_source=a&gclid=b" returns "utm_source=a&gclid=b"
+  // e.g. "utm_source%3Da" returns "utm_source=a", "app://open" returns null
+  private static String query(String url) {
+    if (url == null || url.isEmpty()) {
+      return null;
+    }
+    String query = url;
+    int start = url.indexOf('?');
+    // Like url.split("[\\?]")[1], when there is anything but '?' after the first one.
+    if (start >= 0 && hasOtherThan(url, start + 1, '?')) {
+      int end = url.indexOf('?', start + 1);
+      query = url.substring(start + 1, end < 0 ? url.length() : end);
+    }
+    if (query.contains("%3D")) {
+      try {
+        return URLDecoder.decode(query, "UTF-8");
+      } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+        return null;
+      }
+    }
+    return query.indexOf('=') < 0 ? null : query;
+  }
+
+  private static boolean hasOtherThan(String s, int from, char c) {
+    for (int i = from; i < s.length(); i++) {
+      if (s.charAt(i) != c) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Splits "a=1&b=&c" into {a=1, b=null, c=null}. As in Google Analytics, "a=b=2" also maps b to
+  // 2 unless b was already seen.
+  private static Map<String, String> params(String query) {
+    Map<String, String> params = new HashMap<>();
+    int start = 0;
+    while (start <= query.length()) {
+      int end = query.indexOf('&', start);
+      if (end < 0) {
+        end = query.length();
+      }
+      int first = query.indexOf('=', start);
+      if (first < 0 || first >= end) {
+        if (end > start) {
+          params.put(query.substring(start, end), null);
+        }
+      } else {
+        String key = query.substring(start, first);
+        int second = query.indexOf('=', first + 1);
+        if (second < 0 || second >= end) {
+          params.put(key, emptyToNull(query.substring(first + 1, end)));
+        } else {
+          String value = query.substring(first + 1, second);
+          params.put(key, emptyToNull(value));
+          if (!value.isEmpty() && !params.containsKey(value)) {
+            params.put(value, emptyToNull(query.substring(second + 1, end)));
+          }
+        }
+      }
+      start = end + 1;
+    }
+    return params;
+  }
+
+  private static String emptyToNull(String s) {
+    return s.isEmpty() ? null : s;
+  }
+
+  /** Set every parameter on {@code hitBuilder}. */
+  void applyTo(HitParameters hitBuilder) {
+    for (int i = 0; i < keys.length; i++) {
+      hitBuilder.setParameter(keys[i], values[i]);
+    }
+  }
+
+  /**
+   * Memoizes {@link CampaignParams} by the (source, medium, name, content) of a campaign, and by
+   * the URL of a deep link.
+   */
+  static final class Cache {
+    static final int DEFAULT_MAX_SIZE = 16;
+
+    private final LruCache<Key, CampaignParams> cache;
+    private final LruCache<String, CampaignParams> urls;
+
+    Cache() {
+      this(DEFAULT_MAX_SIZE);
+    }
+
+    Cache(int maxSize) {
+      cache = new LruCache<>(maxSize);
+      urls = new LruCache<>(maxSize);
+    }
+
+    /** The parameters of a deep link {@code url}, parsed the first time it is seen. */
+    CampaignParams fromUrl(String url) {
+      if (url == null || url.isEmpty()) {
+        return EMPTY;
+      }
+      CampaignParams params = urls.get(url);
+      if (params == null) {
+        params = CampaignParams.fromUrl(url);
+        urls.put(url, params);
+      }
+      return params;
+    }
+
+    /** The parameters of a Segment {@code context.campaign}. */
+    CampaignParams get(Map<String, Object> campaign) {
+      Key key = new Key(getString(campaign, "source"), getString(campaign, "medium"),
+          getString(campaign, "name"), getString(campaign, "content"));
+      CampaignParams params = cache.get(key);
+      if (params == null) {
+        params = fromUrl(campaignUrl(key));
+        cache.put(key, params);
+      }
+      return params;
+    }
+
+    int size() {
+      return cache.size();
+    }
+
+    int urlCount() {
+      return urls.size();
+    }
+
+    // Like new Uri.Builder().appendQueryParameter("utm_content", key.content)...toString(), which
+    // writes "null" for missing values.
+    private static String campaignUrl(Key key) {
+      StringBuilder url = new StringBuilder("?utm_content=");
+      encode(url, key.content);
+      encode(url.append("&utm_source="), key.source);
+      encode(url.append("&utm_medium="), key.medium);
+      encode(url.append("&utm_campaign="), key.name);
+      return url.toString();
+    }
+  }
+
+  /** Append {@code value} encoded like {@code Uri.encode}. */
+  static void encode(StringBuilder out, String value) {
+    if (value == null) {
+      out.append("null");
+      return;
+    }
+    byte[] bytes = null;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (isUnreserved(c)) {
+        out.append(c);
+        continue;
+      }
+      if (bytes == null) {
+        try {
+          bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          throw new AssertionError(e);
+        }
+      }
+      // Re-encode the rest from its UTF-8 bytes, every character so far was a single byte.
+      for (int j = i; j < bytes.length; j++) {
+        int b = bytes[j] & 0xff;
+        if (b < 0x80 && isUnreserved((char) b)) {
+          out.append((char) b);
+        } else {
+          out.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xf]);
+        }
+      }
+      return;
+    }
+  }
+
+  private static boolean isUnreserved(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || "_-!.~'()*".indexOf(c) >= 0;
+  }
+
+  private static final class Key {
+    final String source;
+    final String medium;
+    final String name;
+    final String content;
+
+    Key(String source, String medium, String name, String content) {
+      this.source = source;
+      this.medium = medium;
+      this.name = name;
+      this.content = content;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return equal(source, other.source)
+          && equal(medium, other.medium)
+          && equal(name, other.name)
+          && equal(content, other.content);
+    }
+
+    @Override public int hashCode() {
+      int result = hash(source);
+      result = 31 * result + hash(medium);
+      result = 31 * result + hash(name);
+      result = 31 * result + hash(content);
+      return result;
+    }
+
+    private static boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+    private static int hash(String s) {
+      return s == null ? 0 : s.hashCode();
+    }
+  }
+}
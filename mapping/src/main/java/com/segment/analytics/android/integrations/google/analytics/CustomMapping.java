@@ -0,0 +1,105 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.segment.analytics.android.integrations.google.analytics.Values.isNullOrEmpty;
+
+/**
+ * An immutable index from a Segment property (or trait) name to the Google Analytics custom
+ * dimension or metric slot it is mapped to. Settings are parsed once, so the hot path is a single
+ * hash lookup with no string manipulation.
+ */
+final class CustomMapping {
+  static final CustomMapping EMPTY = new CustomMapping(Collections.<String, Slot>emptyMap());
+
+  private static final String DIMENSION_PREFIX = "dimension";
+  private static final String DIMENSION_PREFIX_KEY = "&cd";
+  private static final String METRIC_PREFIX = "metric";
+  private static final String METRIC_PREFIX_KEY = "&cm";
+
+  /** A resolved custom dimension or metric, e.g. index 3 and key {@code &cd3}. */
+  static final class Slot {
+    final int index;
+    final String key;
+
+    Slot(int index, String key) {
+      this.index = index;
+      this.key = key;
+    }
+  }
+
+  private final Map<String, Slot> slots;
+
+  private CustomMapping(Map<String, Slot> slots) {
+    this.slots = slots;
+  }
+
+  /** Compile the {@code dimensions} settings, e.g. {@code {"tag": "dimension3"}}. */
+  static CustomMapping dimensions(Map<String, Object> settings, MappingLogger logger) {
+    return compile(settings, DIMENSION_PREFIX, DIMENSION_PREFIX_KEY, logger);
+  }
+
+  /** Compile the {@code metrics} settings, e.g. {@code {"score": "metric5"}}. */
+  static CustomMapping metrics(Map<String, Object> settings, MappingLogger logger) {
+    return compile(settings, METRIC_PREFIX, METRIC_PREFIX_KEY, logger);
+  }
+
+  private static CustomMapping compile(Map<String, Object> settings, String prefix,
+      String prefixKey, MappingLogger logger) {
+    if (isNullOrEmpty(settings)) {
+      return EMPTY;
+    }
+    Map<String, Slot> slots = new HashMap<>(settings.size() * 4 / 3 + 1);
+    for (Map.Entry<String, Object> entry : settings.entrySet()) {
+      String property = entry.getKey();
+      int index = parseIndex(entry.getValue(), prefix);
+      if (index <= 0) {
+        logger.debug("Ignoring invalid %s mapping for %s: %s", prefix, property, entry.getValue());
+        continue;
+      }
+      slots.put(property, new Slot(index, prefixKey + index));
+    }
+    if (slots.isEmpty()) {
+      return EMPTY;
+    }
+    return new CustomMapping(Collections.unmodifiableMap(slots));
+  }
+
+  // e.g. parseIndex("dimension3", "dimension") returns 3
+  // e.g. parseIndex("dimensionX", "dimension") returns -1
+  private static int parseIndex(Object value, String prefix) {
+    if (!(value instanceof String)) {
+      return -1;
+    }
+    String text = (String) value;
+    if (!text.startsWith(prefix) || text.length() == prefix.length()) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(text.substring(prefix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Returns the slot mapped to {@code property}, or {@code null} if it isn't mapped. */
+  Slot get(String property) {
+    return slots.get(property);
+  }
+
+  /** Every mapped property name and its slot. */
+  Set<Map.Entry<String, Slot>> entries() {
+    return slots.entrySet();
+  }
+
+  boolean isEmpty() {
+    return slots.isEmpty();
+  }
+
+  int size() {
+    return slots.size();
+  }
+}
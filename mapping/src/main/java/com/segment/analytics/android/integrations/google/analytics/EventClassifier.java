@@ -0,0 +1,153 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static com.segment.analytics.android.integrations.google.analytics.Values.isNullOrEmpty;
+import static java.util.regex.Pattern.CASE_INSENSITIVE;
+
+/**
+ * Resolves event names to the kind of hit they map to. Apps use a small set of distinct event
+ * names, so each name is matched against the patterns once and the result is memoized in a
+ * bounded LRU cache.
+ *
+ * Event names configured in the {@code ecommerceEvents} setting (e.g. {@code {"Cart Item Added":
+ * "add"}}) are compiled into a single case insensitive lookup table, checked before the built-in
+ * patterns, so registering more aliases doesn't add more matching passes.
+ */
+final class EventClassifier {
+  static final int DEFAULT_MAX_SIZE = 128;
+  private static final String DEEP_LINK_OPENED = "Deep Link Opened";
+  static final Pattern COMPLETED_ORDER_PATTERN =
+      Pattern.compile("completed *order|"
+              + "order *completed", CASE_INSENSITIVE);
+  static final Pattern PRODUCT_EVENT_NAME_PATTERN =
+      Pattern.compile("(((viewed)|(added)|(removed)) *product *.*)|"
+              + "(product *.* ((viewed)|(added)|(removed)))", CASE_INSENSITIVE);
+  static final Pattern PRODUCT_ADDED =
+      Pattern.compile("((added) *product *.*|product *.* (added))", CASE_INSENSITIVE);
+  static final Pattern PRODUCT_REMOVED =
+      Pattern.compile("((removed) *product *.*|product(removed))", CASE_INSENSITIVE);
+
+  enum EventType {
+    ORDER_COMPLETED("purchase", null),
+    ORDER_REFUNDED("refund", null),
+    PRODUCT_VIEWED("detail", "Product Viewed"),
+    PRODUCT_ADDED("add", "Product Added"),
+    PRODUCT_REMOVED("remove", "Product Removed"),
+    CHECKOUT_STARTED("checkout", "Checkout Started"),
+    DEEP_LINK(null, null),
+    PLAIN(null, null);
+
+    /** The Enhanced Ecommerce product action ({@code &pa}), if any. */
+    final String productAction;
+    /** The event action ({@code &ea}) of product hits, or {@code null} if it isn't one. */
+    final String eventAction;
+
+    EventType(String productAction, String eventAction) {
+      this.productAction = productAction;
+      this.eventAction = eventAction;
+    }
+
+    boolean isProductEvent() {
+      return eventAction != null;
+    }
+
+    boolean isTransaction() {
+      return this == ORDER_COMPLETED || this == ORDER_REFUNDED;
+    }
+
+    // e.g. fromProductAction("add") returns PRODUCT_ADDED
+    static EventType fromProductAction(Object action) {
+      for (EventType type : values()) {
+        if (type.productAction != null && type.productAction.equals(action)) {
+          return type;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final LruCache<String, EventType> cache;
+  /** Configured event names, lower cased, to their type. */
+  private final Map<String, EventType> aliases;
+
+  EventClassifier() {
+    this(DEFAULT_MAX_SIZE, Collections.<String, EventType>emptyMap());
+  }
+
+  EventClassifier(int maxSize) {
+    this(maxSize, Collections.<String, EventType>emptyMap());
+  }
+
+  private EventClassifier(int maxSize, Map<String, EventType> aliases) {
+    this.cache = new LruCache<>(maxSize);
+    this.aliases = aliases;
+  }
+
+  /**
+   * Compile the {@code ecommerceEvents} setting, from event name to product action ({@code
+   * detail}, {@code add}, {@code remove}, {@code checkout}, {@code purchase} or {@code refund}).
+   */
+  static EventClassifier fromSettings(Map<String, Object> ecommerceEvents,
+      MappingLogger logger) {
+    if (isNullOrEmpty(ecommerceEvents)) {
+      return new EventClassifier();
+    }
+    Map<String, EventType> aliases = new HashMap<>(ecommerceEvents.size() * 4 / 3 + 1);
+    for (Map.Entry<String, Object> entry : ecommerceEvents.entrySet()) {
+      EventType type = EventType.fromProductAction(entry.getValue());
+      if (type == null) {
+        logger.debug("Ignoring invalid ecommerce event mapping for %s: %s", entry.getKey(),
+            entry.getValue());
+        continue;
+      }
+      aliases.put(entry.getKey().toLowerCase(Locale.US), type);
+    }
+    return new EventClassifier(DEFAULT_MAX_SIZE, aliases);
+  }
+
+  EventType classify(String event) {
+    if (event == null) {
+      return EventType.PLAIN;
+    }
+    EventType type = cache.get(event);
+    if (type == null) {
+      type = match(event);
+      cache.put(event, type);
+    }
+    return type;
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  private EventType match(String event) {
+    if (!aliases.isEmpty()) {
+      EventType alias = aliases.get(event.toLowerCase(Locale.US));
+      if (alias != null) {
+        return alias;
+      }
+    }
+    if (DEEP_LINK_OPENED.equals(event)) {
+      return EventType.DEEP_LINK;
+    }
+    if (COMPLETED_ORDER_PATTERN.matcher(event).matches()) {
+      return EventType.ORDER_COMPLETED;
+    }
+    if (PRODUCT_EVENT_NAME_PATTERN.matcher(event).matches()) {
+      if (PRODUCT_REMOVED.matcher(event).matches()) {
+        return EventType.PRODUCT_REMOVED;
+      }
+      if (PRODUCT_ADDED.matcher(event).matches()) {
+        return EventType.PRODUCT_ADDED;
+      }
+      return EventType.PRODUCT_VIEWED;
+    }
+    return EventType.PLAIN;
+  }
+}
@@ -0,0 +1,393 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.android.integrations.google.analytics.EventClassifier.EventType;
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.HitType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.segment.analytics.android.integrations.google.analytics.Values.getDouble;
+import static com.segment.analytics.android.integrations.google.analytics.Values.getInt;
+import static com.segment.analytics.android.integrations.google.analytics.Values.getMaps;
+import static com.segment.analytics.android.integrations.google.analytics.Values.getString;
+import static com.segment.analytics.android.integrations.google.analytics.Values.isNullOrEmpty;
+
+/**
+ * Maps Segment calls to Google Analytics hits: screen and track properties in, parameter maps out
+ * to a {@link HitSink}. It only depends on the JDK, so the hot path can be benchmarked and profiled
+ * on a plain JVM; {@link GoogleAnalyticsIntegration} feeds it payloads and sends what it builds to
+ * the trackers.
+ */
+final class HitMapper {
+  private static final String DEFAULT_CATEGORY = "All";
+  private static final String ENHANCED_ECOMMERCE = "EnhancedEcommerce";
+  private static final String USER_ID_KEY = "&uid";
+  private static final String QUANTITY_KEY = "quantity";
+  private static final String LABEL_KEY = "label";
+  private static final String PRODUCTS_KEY = "products";
+  private static final int DEFAULT_PRODUCTS_PER_HIT = 20;
+  // &cc, &cm, &cn, &cs, &ck, &ci, &anid, &gclid, &dclid, &aclid and &gmob_t.
+  private static final int CAMPAIGN_PARAMS = 11;
+  // Google Analytics ignores product indexes above 200.
+  static final int MAX_PRODUCTS_PER_HIT = 200;
+  // Google Analytics drops hits above 8 KB, leave room for what the tracker adds (&cid, &tid, ...).
+  static final int MAX_HIT_SIZE = 8192 - 1024;
+  // &prNid, &prNnm, &prNpr and &prNqt.
+  private static final int ORDER_PRODUCT_PARAMS = 4;
+
+  final HitSink sink;
+  final IntegrationMetrics metrics;
+  final EventClassifier eventClassifier;
+  final CampaignParams.Cache campaignCache = new CampaignParams.Cache();
+  // Mutable for testing.
+  boolean sendUserId;
+  CustomMapping customDimensions;
+  CustomMapping customMetrics;
+  boolean batchProductEvents;
+  int productsPerHit;
+
+  /** Configure mapping from the integration {@code settings}. */
+  HitMapper(Map<String, Object> settings, HitSink sink, IntegrationMetrics metrics,
+      MappingLogger logger) {
+    this.sink = sink;
+    this.metrics = metrics;
+    sendUserId = Values.getBoolean(settings, "sendUserId", false);
+    customDimensions = CustomMapping.dimensions(Values.getMap(settings, "dimensions"), logger);
+    customMetrics = CustomMapping.metrics(Values.getMap(settings, "metrics"), logger);
+    eventClassifier =
+        EventClassifier.fromSettings(Values.getMap(settings, "ecommerceEvents"), logger);
+    batchProductEvents = Values.getBoolean(settings, "batchProductEvents", false);
+    productsPerHit = getInt(settings, "productsPerHit", DEFAULT_PRODUCTS_PER_HIT);
+    if (productsPerHit <= 0) {
+      productsPerHit = DEFAULT_PRODUCTS_PER_HIT;
+    } else if (productsPerHit > MAX_PRODUCTS_PER_HIT) {
+      productsPerHit = MAX_PRODUCTS_PER_HIT;
+    }
+  }
+
+  /**
+   * Map a screen call: its product hits if it is named like a product event, then its screen
+   * view. {@code campaign} is the payload's {@code context.campaign}, or {@code null}.
+   */
+  void mapScreen(String screenName, String category, Map<String, Object> properties,
+      Map<String, Object> campaign) {
+    sendProductEvent(eventClassifier.classify(screenName), category, properties);
+
+    sink.setScreenName(screenName);
+
+    HitWriter hitWriter = HitWriter.screenView(hitSize(1 + CAMPAIGN_PARAMS));
+    resolveSlots(properties).applyTo(hitWriter);
+    attachCampaignData(hitWriter, campaign);
+
+    sink.send(HitType.SCREENVIEW, build(hitWriter), properties, null);
+  }
+
+  /**
+   * Map a track call: its product or transaction hits, then its event hit. Returns the type of
+   * the event.
+   */
+  EventType mapTrack(String event, Map<String, Object> properties,
+      Map<String, Object> campaign) {
+    String category = getString(properties, "category");
+
+    EventType eventType = eventClassifier.classify(event);
+    sendProductEvent(eventType, category, properties);
+
+    if (eventType == EventType.ORDER_COMPLETED) {
+      sendTransaction(properties);
+    } else if (eventType == EventType.ORDER_REFUNDED) {
+      sendRefund(properties);
+    }
+
+    String label = getString(properties, LABEL_KEY);
+    HitWriter hitWriter = HitWriter.event(hitSize(5 + CAMPAIGN_PARAMS));
+    hitWriter.setAction(event)
+        .setCategory(isNullOrEmpty(category) ? DEFAULT_CATEGORY : category)
+        .setLabel(label)
+        .setValue((int) Values.value(properties));
+
+    resolveSlots(properties).applyTo(hitWriter);
+    attachCampaignData(hitWriter, campaign);
+
+    if (eventType == EventType.DEEP_LINK) {
+      // Apps are opened from the same few marketing links, reuse the parameters parsed last time.
+      campaignCache.fromUrl(getString(properties, "url")).applyTo(hitWriter);
+    }
+
+    sink.send(HitType.EVENT, build(hitWriter), properties, null);
+    return eventType;
+  }
+
+  /** The user id and the custom dimensions and metrics {@code traits} map to. */
+  Map<String, String> userParameters(String userId, Map<String, Object> traits,
+      CustomMapping customDimensions, CustomMapping customMetrics) {
+    Map<String, String> parameters = new HashMap<>();
+    if (sendUserId) {
+      parameters.put(USER_ID_KEY, userId);
+    }
+    for (Map.Entry<String, Object> entry : traits.entrySet()) {
+      String trait = entry.getKey();
+      CustomMapping.Slot dimension = customDimensions.get(trait);
+      if (dimension != null) {
+        parameters.put(dimension.key, String.valueOf(entry.getValue()));
+      }
+      CustomMapping.Slot metric = customMetrics.get(trait);
+      if (metric != null) {
+        parameters.put(metric.key, String.valueOf(entry.getValue()));
+      }
+    }
+    return parameters;
+  }
+
+  /**
+   * Send a completed order as a transaction hit. Products that would take it over {@link
+   * #MAX_HIT_SIZE} or {@link #MAX_PRODUCTS_PER_HIT} go into follow-up hits for the same
+   * transaction, with zero totals so the revenue is only counted once.
+   */
+  private void sendTransaction(Map<String, Object> properties) {
+    List<Map<String, Object>> products = getMaps(properties, PRODUCTS_KEY);
+    int productCount = products == null ? 0 : products.size();
+
+    HitWriter hitWriter =
+        HitWriter.event(hitSize(7 + ORDER_PRODUCT_PARAMS
+            * Math.min(productCount, MAX_PRODUCTS_PER_HIT)));
+    hitWriter.setProductAction(EventType.ORDER_COMPLETED.productAction)
+        .setTransactionId(getString(properties, "orderId"))
+        .setTransactionTotals(Values.total(properties), getDouble(properties, "tax", 0),
+            getDouble(properties, "shipping", 0));
+    setEcommerceEventCategory(hitWriter, properties);
+    resolveSlots(properties).applyTo(hitWriter);
+
+    boolean followUp = false;
+    for (int i = 0; i < productCount; i++) {
+      Map<String, Object> product = products.get(i);
+      if (hitWriter.productCount() == MAX_PRODUCTS_PER_HIT) {
+        sendOrderHit(hitWriter, followUp, properties);
+        hitWriter = followUpOrderHit(properties, productCount - i);
+        followUp = true;
+      }
+      writeOrderProduct(hitWriter, product);
+      if (hitWriter.estimatedSize() > MAX_HIT_SIZE && hitWriter.productCount() > 1) {
+        hitWriter.removeLastProduct();
+        sendOrderHit(hitWriter, followUp, properties);
+        hitWriter = followUpOrderHit(properties, productCount - i);
+        followUp = true;
+        writeOrderProduct(hitWriter, product);
+      }
+    }
+    sendOrderHit(hitWriter, followUp, properties);
+  }
+
+  /**
+   * Send a refund of the order. It is a full refund without products, or a partial refund of the
+   * quantity of each product listed.
+   */
+  private void sendRefund(Map<String, Object> properties) {
+    List<Map<String, Object>> products = getMaps(properties, PRODUCTS_KEY);
+    int productCount = products == null ? 0 : products.size();
+
+    HitWriter hitWriter = HitWriter.event(hitSize(4 + 2 * productCount));
+    hitWriter.setProductAction(EventType.ORDER_REFUNDED.productAction)
+        .setTransactionId(getString(properties, "orderId"));
+    setEcommerceEventCategory(hitWriter, properties);
+    resolveSlots(properties).applyTo(hitWriter);
+    for (int i = 0; i < productCount; i++) {
+      Map<String, Object> product = products.get(i);
+      String prefix = hitWriter.addProduct();
+      hitWriter.setProductId(prefix, getString(product, "id"))
+          .setProductQuantity(prefix, getInt(product, QUANTITY_KEY, 0));
+    }
+    sink.send(HitType.TRANSACTION, build(hitWriter), properties, null);
+  }
+
+  private void sendOrderHit(HitWriter hitWriter, boolean followUp,
+      Map<String, Object> properties) {
+    if (followUp) {
+      metrics.recordSplitHit();
+      sink.send(HitType.PRODUCT, build(hitWriter), null, null);
+    } else {
+      sink.send(HitType.TRANSACTION, build(hitWriter), properties, null);
+    }
+  }
+
+  private HitWriter followUpOrderHit(Map<String, Object> properties, int remainingProducts) {
+    HitWriter hitWriter = HitWriter.event(hitSize(
+        7 + ORDER_PRODUCT_PARAMS * Math.min(remainingProducts, MAX_PRODUCTS_PER_HIT)));
+    hitWriter.setProductAction(EventType.ORDER_COMPLETED.productAction)
+        .setTransactionId(getString(properties, "orderId"))
+        .setTransactionTotals(0, 0, 0);
+    setEcommerceEventCategory(hitWriter, properties);
+    return hitWriter;
+  }
+
+  private static void writeOrderProduct(HitWriter hitWriter, Map<String, Object> product) {
+    String prefix = hitWriter.addProduct();
+    hitWriter.setProductId(prefix, getString(product, "id"))
+        .setProductName(prefix, getString(product, "name"))
+        .setProductPrice(prefix, getDouble(product, "price", 0))
+        .setProductQuantity(prefix, getInt(product, QUANTITY_KEY, 0));
+  }
+
+  /** Send a product event. */
+  void sendProductEvent(String event, String category, Map<String, Object> eventProperties) {
+    sendProductEvent(eventClassifier.classify(event), category, eventProperties);
+  }
+
+  private void sendProductEvent(EventType eventType, String category,
+      Map<String, Object> eventProperties) {
+    if (!eventType.isProductEvent()) {
+      return;
+    }
+
+    List<Map<String, Object>> products = getMaps(eventProperties, PRODUCTS_KEY);
+    if (products == null || products.isEmpty()) {
+      // Like new Product(productId(), sku(), price()).
+      Map<String, Object> product = new HashMap<>(4);
+      product.put("id", getString(eventProperties, "id"));
+      product.put("sku", getString(eventProperties, "sku"));
+      product.put("price", getDouble(eventProperties, "price", 0));
+      products = Collections.singletonList(product);
+    }
+
+    String action = eventType.productAction;
+    String eventAction = eventType.eventAction;
+
+    // Product properties are layered over the event properties without copying either.
+    PropertiesOverlay overlay = new PropertiesOverlay(eventProperties);
+
+    if (batchProductEvents) {
+      sendBatchedProductEvent(eventAction, action, category, eventProperties, overlay, products);
+      return;
+    }
+
+    for (Map<String, Object> productProperties : products) {
+      Map<String, Object> properties = overlay.overlay(productProperties);
+
+      // The product and its hit carry the same dimensions and metrics, resolve them once.
+      ResolvedSlots slots = resolveSlots(properties);
+      HitWriter hitWriter = HitWriter.event(hitSize(4) + productSize());
+      writeProduct(hitWriter, category, properties, slots);
+      hitWriter.setProductAction(action).setAction(eventAction);
+      setEcommerceEventCategory(hitWriter, properties);
+      slots.applyTo(hitWriter);
+
+      sink.send(HitType.PRODUCT, build(hitWriter), properties,
+          Collections.singletonList(properties));
+    }
+  }
+
+  /**
+   * Send products as Enhanced Ecommerce hits carrying up to {@link #productsPerHit} products each,
+   * instead of one hit per product. Product level custom dimensions and metrics are set on each
+   * product ({@code &prNcdM}), while the hit itself only carries those of the event properties. A
+   * hit is also cut short when the next product would take it over {@link #MAX_HIT_SIZE}.
+   */
+  private void sendBatchedProductEvent(String eventAction, String productAction,
+      String category, Map<String, Object> eventProperties, PropertiesOverlay overlay,
+      List<Map<String, Object>> products) {
+    HitWriter hitWriter = null;
+    int remaining = products.size();
+    // Each product of the current hit, only kept for sinks that need them.
+    List<Map<String, Object>> hitProducts =
+        sink.needsProducts() ? new ArrayList<Map<String, Object>>(productsPerHit) : null;
+    for (Map<String, Object> productProperties : products) {
+      Map<String, Object> properties = overlay.overlay(productProperties);
+      ResolvedSlots slots = resolveSlots(properties);
+
+      if (hitWriter == null) {
+        hitWriter = productHit(eventAction, productAction, eventProperties, remaining);
+      }
+      writeProduct(hitWriter, category, properties, slots);
+      if (hitWriter.estimatedSize() > MAX_HIT_SIZE && hitWriter.productCount() > 1) {
+        // Send the products that fit and start the next hit with this one.
+        hitWriter.removeLastProduct();
+        sink.send(HitType.PRODUCT, build(hitWriter), eventProperties, hitProducts);
+        metrics.recordSplitHit();
+        if (hitProducts != null) {
+          hitProducts.clear();
+        }
+        hitWriter = productHit(eventAction, productAction, eventProperties, remaining);
+        writeProduct(hitWriter, category, properties, slots);
+      }
+      if (hitProducts != null) {
+        hitProducts.add(new PropertiesOverlay(eventProperties).overlay(productProperties));
+      }
+      remaining--;
+
+      if (hitWriter.productCount() == productsPerHit) {
+        sink.send(HitType.PRODUCT, build(hitWriter), eventProperties, hitProducts);
+        hitWriter = null;
+        if (hitProducts != null) {
+          hitProducts.clear();
+        }
+      }
+    }
+    if (hitWriter != null) {
+      sink.send(HitType.PRODUCT, build(hitWriter), eventProperties, hitProducts);
+    }
+  }
+
+  /** Start a batched product hit, sized for up to {@code products} products. */
+  private HitWriter productHit(String eventAction, String productAction,
+      Map<String, Object> eventProperties, int products) {
+    HitWriter hitWriter =
+        HitWriter.event(hitSize(4) + Math.min(productsPerHit, products) * productSize());
+    hitWriter.setProductAction(productAction).setAction(eventAction);
+    setEcommerceEventCategory(hitWriter, eventProperties);
+    resolveSlots(eventProperties).applyTo(hitWriter);
+    return hitWriter;
+  }
+
+  /** The custom dimensions and metrics {@code properties} map to. */
+  ResolvedSlots resolveSlots(Map<String, Object> properties) {
+    return ResolvedSlots.resolve(customDimensions, customMetrics, properties);
+  }
+
+  /** Set campaign data when present. */
+  private void attachCampaignData(HitParameters hitBuilder, Map<String, Object> campaign) {
+    if (isNullOrEmpty(campaign)) {
+      return;
+    }
+    // The campaign rarely changes within a session, so reuse the parameters parsed last time.
+    campaignCache.get(campaign).applyTo(hitBuilder);
+  }
+
+  private Map<String, String> build(HitWriter hitWriter) {
+    int truncated = hitWriter.truncatedFields();
+    if (truncated > 0) {
+      metrics.recordTruncatedFields(truncated);
+    }
+    return hitWriter.build();
+  }
+
+  /** Add a product to the hit, like {@code addProduct(new Product().setId(...)...)}. */
+  private void writeProduct(HitWriter hitWriter, String category, Map<String, Object> properties,
+      ResolvedSlots slots) {
+    String product = hitWriter.addProduct();
+    hitWriter.setProductId(product, getString(properties, "id"))
+        .setProductName(product, getString(properties, "name"))
+        .setProductCategory(product, isNullOrEmpty(category) ? DEFAULT_CATEGORY : category)
+        .setProductPrice(product, getDouble(properties, "price", 0))
+        .setProductQuantity(product, getInt(properties, QUANTITY_KEY, 0));
+
+    slots.applyToProduct(hitWriter, product);
+  }
+
+  /** Expected number of parameters of a hit with {@code params} besides dimensions and metrics. */
+  private int hitSize(int params) {
+    return params + customDimensions.size() + customMetrics.size();
+  }
+
+  /** Expected number of parameters of a product. */
+  private int productSize() {
+    return 5 + customDimensions.size() + customMetrics.size();
+  }
+
+  private static void setEcommerceEventCategory(HitWriter hitWriter,
+      Map<String, Object> properties) {
+    String category = getString(properties, "category");
+    hitWriter.setCategory(isNullOrEmpty(category) ? ENHANCED_ECOMMERCE : category);
+  }
+}
@@ -0,0 +1,17 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+/**
+ * The parameters mapping sets the same way on any hit. {@link HitWriter} writes every hit the
+ * integration sends; the Android library's {@code EventHitBuilder} and {@code
+ * ScreenViewHitBuilder} wrap Google Analytics' own builders for callers still building hits with
+ * them, so {@link ResolvedSlots} and {@link CampaignParams} apply to either.
+ */
+interface HitParameters {
+  HitParameters setCustomDimension(int index, String dimension);
+
+  HitParameters setCustomMetric(int index, float metric);
+
+  HitParameters setCampaignParamsFromUrl(String url);
+
+  HitParameters setParameter(String paramName, String paramValue);
+}
@@ -0,0 +1,22 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.HitType;
+import java.util.List;
+import java.util.Map;
+
+/** Receives the hits {@link HitMapper} builds, e.g. to send them to Google Analytics trackers. */
+interface HitSink {
+  /**
+   * Called with each hit built. {@code properties} and {@code products} are what the hit's custom
+   * dimensions and metrics were mapped from, or {@code null}; {@code products} is only set when
+   * {@link #needsProducts()}.
+   */
+  void send(HitType type, Map<String, String> hit, Map<String, Object> properties,
+      List<? extends Map<String, Object>> products);
+
+  /** Called with the name of a screen before its screen view hit, after its product hits. */
+  void setScreenName(String screenName);
+
+  /** Whether {@link #send} needs the products of batched product hits. */
+  boolean needsProducts();
+}
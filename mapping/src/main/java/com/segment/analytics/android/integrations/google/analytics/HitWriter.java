@@ -0,0 +1,247 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes hit parameters straight into a right-sized map. The result is exactly what Google
+ * Analytics' {@code HitBuilders} would build for the same calls, but without the intermediate
+ * parameter, product and product action maps that {@code build()} copies together.
+ *
+ * A writer builds a single hit: {@link #build} returns the map it wrote into.
+ *
+ * While writing, it keeps an estimate of the hit's URL encoded size, so callers can keep hits under
+ * the payload limit, and truncates text fields to the UTF-8 byte lengths Google Analytics accepts.
+ */
+final class HitWriter implements HitParameters {
+  private static final String HIT_TYPE = "&t";
+  private static final String PRODUCT_PREFIX = "&pr";
+  // Google Analytics drops text fields longer than these, in UTF-8 bytes.
+  static final int MAX_TEXT_LENGTH = 500;
+  static final int MAX_SHORT_TEXT_LENGTH = 150;
+
+  private final Map<String, String> params;
+  private int productCount;
+  private int estimatedSize;
+  private int truncatedFields;
+  // What addProduct saw, restored by removeLastProduct.
+  private int sizeBeforeProduct;
+  private int truncatedBeforeProduct;
+
+  private HitWriter(String hitType, int expectedParams) {
+    params = new HashMap<>(expectedParams * 4 / 3 + 1);
+    put(HIT_TYPE, hitType);
+  }
+
+  /** Start an event hit, like {@code new HitBuilders.EventBuilder()}. */
+  static HitWriter event(int expectedParams) {
+    return new HitWriter("event", expectedParams);
+  }
+
+  /** Start a screen view hit, like {@code new HitBuilders.ScreenViewBuilder()}. */
+  static HitWriter screenView(int expectedParams) {
+    return new HitWriter("screenview", expectedParams);
+  }
+
+  HitWriter setCategory(String category) {
+    put("&ec", truncate(category, MAX_SHORT_TEXT_LENGTH));
+    return this;
+  }
+
+  HitWriter setAction(String action) {
+    put("&ea", truncate(action, MAX_TEXT_LENGTH));
+    return this;
+  }
+
+  HitWriter setLabel(String label) {
+    put("&el", truncate(label, MAX_TEXT_LENGTH));
+    return this;
+  }
+
+  HitWriter setValue(long value) {
+    put("&ev", Long.toString(value));
+    return this;
+  }
+
+  @Override public HitWriter setCustomDimension(int index, String dimension) {
+    put("&cd" + index, truncate(dimension, MAX_SHORT_TEXT_LENGTH));
+    return this;
+  }
+
+  @Override public HitWriter setCustomMetric(int index, float metric) {
+    put("&cm" + index, Float.toString(metric));
+    return this;
+  }
+
+  @Override public HitWriter setCampaignParamsFromUrl(String url) {
+    CampaignParams.fromUrl(url).applyTo(this);
+    return this;
+  }
+
+  @Override public HitWriter setParameter(String paramName, String paramValue) {
+    if (paramName != null) {
+      put(paramName, paramValue);
+    }
+    return this;
+  }
+
+  /** Like {@code new ProductAction(action)}. */
+  HitWriter setProductAction(String action) {
+    put("&pa", action);
+    return this;
+  }
+
+  /** Like {@code setTransactionId} on a product action. */
+  HitWriter setTransactionId(String id) {
+    put("&ti", truncate(id, MAX_TEXT_LENGTH));
+    return this;
+  }
+
+  /** Like {@code setTransactionRevenue}, {@code setTransactionTax}, ... on a product action. */
+  HitWriter setTransactionTotals(double revenue, double tax, double shipping) {
+    put("&tr", Double.toString(revenue));
+    put("&tt", Double.toString(tax));
+    put("&ts", Double.toString(shipping));
+    return this;
+  }
+
+  /** Start the next product, returning the prefix of its keys, e.g. {@code &pr1}. */
+  String addProduct() {
+    sizeBeforeProduct = estimatedSize;
+    truncatedBeforeProduct = truncatedFields;
+    return PRODUCT_PREFIX + (++productCount);
+  }
+
+  /** Remove the product started by the last {@link #addProduct} call and everything set on it. */
+  void removeLastProduct() {
+    String product = PRODUCT_PREFIX + productCount;
+    Iterator<String> keys = params.keySet().iterator();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      // e.g. &pr1id is a key of product 1, &pr12id isn't.
+      if (key.startsWith(product) && key.length() > product.length()
+          && !isDigit(key.charAt(product.length()))) {
+        keys.remove();
+      }
+    }
+    productCount--;
+    estimatedSize = sizeBeforeProduct;
+    // The product is written again in the next hit, don't count its truncated fields twice.
+    truncatedFields = truncatedBeforeProduct;
+  }
+
+  HitWriter setProductId(String product, String id) {
+    put(product + "id", truncate(id, MAX_TEXT_LENGTH));
+    return this;
+  }
+
+  HitWriter setProductName(String product, String name) {
+    put(product + "nm", truncate(name, MAX_TEXT_LENGTH));
+    return this;
+  }
+
+  HitWriter setProductCategory(String product, String category) {
+    put(product + "ca", truncate(category, MAX_TEXT_LENGTH));
+    return this;
+  }
+
+  HitWriter setProductPrice(String product, double price) {
+    put(product + "pr", Double.toString(price));
+    return this;
+  }
+
+  HitWriter setProductQuantity(String product, int quantity) {
+    put(product + "qt", Integer.toString(quantity));
+    return this;
+  }
+
+  HitWriter setProductCustomDimension(String product, int index, String dimension) {
+    put(product + "cd" + index, truncate(dimension, MAX_SHORT_TEXT_LENGTH));
+    return this;
+  }
+
+  HitWriter setProductCustomMetric(String product, int index, int metric) {
+    put(product + "cm" + index, Integer.toString(metric));
+    return this;
+  }
+
+  int productCount() {
+    return productCount;
+  }
+
+  /** Estimated size in bytes of the parameters written so far, URL encoded. */
+  int estimatedSize() {
+    return estimatedSize;
+  }
+
+  /** Number of values shortened to the length Google Analytics accepts. */
+  int truncatedFields() {
+    return truncatedFields;
+  }
+
+  Map<String, String> build() {
+    return params;
+  }
+
+  private void put(String key, String value) {
+    String previous = params.put(key, value);
+    estimatedSize += encodedSize(key, value) - encodedSize(key, previous);
+  }
+
+  /** Shorten {@code value} to at most {@code maxBytes} once UTF-8 encoded. */
+  private String truncate(String value, int maxBytes) {
+    // A char takes at most 3 bytes (a surrogate pair takes 4), so short values always fit.
+    if (value == null || value.length() * 3 <= maxBytes) {
+      return value;
+    }
+    int bytes = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      int charBytes;
+      if (c < 0x80) {
+        charBytes = 1;
+      } else if (c < 0x800) {
+        charBytes = 2;
+      } else if (Character.isHighSurrogate(c)) {
+        charBytes = 4; // The whole pair, so it is never split.
+      } else if (Character.isLowSurrogate(c)) {
+        charBytes = 0; // Counted with its high surrogate.
+      } else {
+        charBytes = 3;
+      }
+      if (bytes + charBytes > maxBytes) {
+        truncatedFields++;
+        return value.substring(0, i);
+      }
+      bytes += charBytes;
+    }
+    return value;
+  }
+
+  /** Length of {@code &key=value} once URL encoded, 0 for null values which aren't sent. */
+  static int encodedSize(String key, String value) {
+    if (value == null) {
+      return 0;
+    }
+    int size = key.length() + 1; // The key and "=", which starts with "&".
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+          || c == '.' || c == '-' || c == '*' || c == '_' || c == ' ') {
+        size++;
+      } else if (c < 0x80) {
+        size += 3; // %XX
+      } else if (c < 0x800 || Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+        size += 6; // Two UTF-8 bytes, or half of a four byte surrogate pair.
+      } else {
+        size += 9;
+      }
+    }
+    return size;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -0,0 +1,118 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.CallType;
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.HitType;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records what the integration does with lock-free counters and fixed size histograms, so it is
+ * cheap enough to leave on: recording never locks, and only allocates the iterator that walks a
+ * hit's parameters to estimate its size.
+ */
+final class IntegrationMetrics {
+  // Read by MetricsSnapshot.
+  final AtomicLongArray hits = new AtomicLongArray(HitType.values().length);
+  final AtomicLong additionalTrackerHits = new AtomicLong();
+  final AtomicLong setCalls = new AtomicLong();
+  final AtomicLong skippedSetCalls = new AtomicLong();
+  final AtomicLong sampledOut = new AtomicLong();
+  final AtomicLong suppressedScreens = new AtomicLong();
+  final AtomicLong hitBytes = new AtomicLong();
+  final AtomicLong splitHits = new AtomicLong();
+  final AtomicLong truncatedFields = new AtomicLong();
+  final LatencyRecorder[] mappingLatency;
+  final LatencyRecorder flushLatency = new LatencyRecorder();
+
+  IntegrationMetrics() {
+    mappingLatency = new LatencyRecorder[CallType.values().length];
+    for (int i = 0; i < mappingLatency.length; i++) {
+      mappingLatency[i] = new LatencyRecorder();
+    }
+  }
+
+  void recordHit(HitType type, Map<String, String> hit) {
+    hits.incrementAndGet(type.ordinal());
+    hitBytes.addAndGet(estimateSize(hit));
+  }
+
+  /** A copy of a hit sent to an additional property, kept out of the per type totals. */
+  void recordAdditionalTrackerHit() {
+    additionalTrackerHits.incrementAndGet();
+  }
+
+  void recordSplitHit() {
+    splitHits.incrementAndGet();
+  }
+
+  void recordTruncatedFields(int count) {
+    truncatedFields.addAndGet(count);
+  }
+
+  void recordSet(int count) {
+    setCalls.addAndGet(count);
+  }
+
+  void recordSkippedSet(int count) {
+    skippedSetCalls.addAndGet(count);
+  }
+
+  void recordSampledOut() {
+    sampledOut.incrementAndGet();
+  }
+
+  void recordSuppressedScreen() {
+    suppressedScreens.incrementAndGet();
+  }
+
+  void recordMapping(CallType type, long nanos) {
+    mappingLatency[type.ordinal()].record(nanos);
+  }
+
+  void recordFlush(long nanos) {
+    flushLatency.record(nanos);
+  }
+
+  MetricsSnapshot snapshot(Map<String, Long> rateLimited, long coalescedFlushes,
+      long droppedCalls) {
+    return new MetricsSnapshot(this, rateLimited, coalescedFlushes, droppedCalls);
+  }
+
+  // Unencoded length of "key=value&" for each parameter. Walking the entries allocates an iterator
+  // per hit, which is small next to the hit map itself.
+  private static long estimateSize(Map<String, String> hit) {
+    long size = 0;
+    for (Map.Entry<String, String> entry : hit.entrySet()) {
+      String value = entry.getValue();
+      if (value != null) {
+        size += entry.getKey().length() + value.length() + 2;
+      }
+    }
+    return size;
+  }
+
+  /** Counts latencies into power of two microsecond buckets. */
+  static final class LatencyRecorder {
+    static final int BUCKETS = 24;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    void record(long nanos) {
+      long micros = nanos / 1000;
+      // e.g. 0us goes to bucket 0, 1us to bucket 1, 2-3us to bucket 2, 4-7us to bucket 3.
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+      totalNanos.addAndGet(nanos);
+    }
+
+    MetricsSnapshot.Histogram snapshot() {
+      long[] snapshot = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        snapshot[i] = counts.get(i);
+      }
+      return new MetricsSnapshot.Histogram(snapshot, totalNanos.get());
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small thread-safe LRU cache used to memoize per-name and per-URL work. Entries beyond {@code
+ * maxSize} are evicted least recently used first, so unbounded inputs can't leak memory.
+ */
+final class LruCache<K, V> {
+  private final Map<K, V> map;
+
+  LruCache(final int maxSize) {
+    this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  synchronized V get(K key) {
+    return map.get(key);
+  }
+
+  synchronized void put(K key, V value) {
+    map.put(key, value);
+  }
+
+  synchronized int size() {
+    return map.size();
+  }
+
+  synchronized void clear() {
+    map.clear();
+  }
+}
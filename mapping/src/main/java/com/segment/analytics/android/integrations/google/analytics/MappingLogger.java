@@ -0,0 +1,11 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+/** Where the mapping core reports settings it ignores, e.g. the integration's Segment logger. */
+interface MappingLogger {
+  MappingLogger NONE = new MappingLogger() {
+    @Override public void debug(String format, Object... extra) {
+    }
+  };
+
+  void debug(String format, Object... extra);
+}
@@ -0,0 +1,280 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A point in time copy of what the integration has done so far: hits sent by type, user scope
+ * updates from identify, mapping latency per call type, approximate hit payload size and flushes.
+ * Returned by {@code GoogleAnalyticsIntegration.metrics()}.
+ */
+public final class MetricsSnapshot {
+  /** The kind of hit sent to the tracker. */
+  public enum HitType {
+    SCREENVIEW,
+    EVENT,
+    TRANSACTION,
+    PRODUCT
+  }
+
+  /** The Segment call that was mapped. */
+  public enum CallType {
+    TRACK,
+    SCREEN,
+    IDENTIFY
+  }
+
+  private final long[] hits;
+  private final long additionalTrackerHits;
+  private final long setCalls;
+  private final long skippedSetCalls;
+  private final long sampledOut;
+  private final long suppressedScreens;
+  private final Map<String, Long> rateLimited;
+  private final long hitBytes;
+  private final long splitHits;
+  private final long truncatedFields;
+  private final Histogram[] mappingLatency;
+  private final Histogram flushLatency;
+  private final long coalescedFlushes;
+  private final long droppedCalls;
+
+  /**
+   * Copy the counters of {@code metrics}, along with what other components count: hits dropped
+   * by the rate limiter by event name, flush requests coalesced by the flush scheduler, and calls
+   * dropped by asynchronous dispatch.
+   */
+  MetricsSnapshot(IntegrationMetrics metrics, Map<String, Long> rateLimited,
+      long coalescedFlushes, long droppedCalls) {
+    hits = new long[metrics.hits.length()];
+    for (int i = 0; i < hits.length; i++) {
+      hits[i] = metrics.hits.get(i);
+    }
+    additionalTrackerHits = metrics.additionalTrackerHits.get();
+    setCalls = metrics.setCalls.get();
+    skippedSetCalls = metrics.skippedSetCalls.get();
+    sampledOut = metrics.sampledOut.get();
+    suppressedScreens = metrics.suppressedScreens.get();
+    this.rateLimited = rateLimited;
+    hitBytes = metrics.hitBytes.get();
+    splitHits = metrics.splitHits.get();
+    truncatedFields = metrics.truncatedFields.get();
+    mappingLatency = new Histogram[metrics.mappingLatency.length];
+    for (int i = 0; i < mappingLatency.length; i++) {
+      mappingLatency[i] = metrics.mappingLatency[i].snapshot();
+    }
+    flushLatency = metrics.flushLatency.snapshot();
+    this.coalescedFlushes = coalescedFlushes;
+    this.droppedCalls = droppedCalls;
+  }
+
+  /** Number of hits of {@code type} sent to the primary tracker. */
+  public long hits(HitType type) {
+    return hits[type.ordinal()];
+  }
+
+  /** Number of hits of any type sent to the primary tracker. */
+  public long totalHits() {
+    long total = 0;
+    for (long count : hits) {
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * Number of copies of hits sent to additional properties, which aren't counted in {@link
+   * #hits} and {@link #totalHits}.
+   */
+  public long additionalTrackerHits() {
+    return additionalTrackerHits;
+  }
+
+  /**
+   * Number of user scoped parameters ({@code &uid}, {@code &cdN}, {@code &cmN}) identify changed,
+   * across every tracker.
+   */
+  public long setCalls() {
+    return setCalls;
+  }
+
+  /** Number of user scoped parameters identify resolved to the value they already had. */
+  public long skippedSetCalls() {
+    return skippedSetCalls;
+  }
+
+  /** Number of track and screen calls dropped because the user is outside the sample. */
+  public long sampledOut() {
+    return sampledOut;
+  }
+
+  /** Number of screen calls dropped as repeats of the previous screen. */
+  public long suppressedScreens() {
+    return suppressedScreens;
+  }
+
+  /** Number of track calls dropped by the rate limiter. */
+  public long rateLimited() {
+    long total = 0;
+    for (long count : rateLimited.values()) {
+      total += count;
+    }
+    return total;
+  }
+
+  /** Number of {@code event} track calls dropped by the rate limiter. */
+  public long rateLimited(String event) {
+    Long count = rateLimited.get(event);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Approximate size in bytes of every hit sent to the primary tracker, counted as the unencoded
+   * length of {@code key=value&} for each parameter.
+   */
+  public long hitBytes() {
+    return hitBytes;
+  }
+
+  /**
+   * Number of extra hits sent because products didn't fit in one hit, within the payload size and
+   * product index limits.
+   */
+  public long splitHits() {
+    return splitHits;
+  }
+
+  /** Number of text fields shortened to the length Google Analytics accepts. */
+  public long truncatedFields() {
+    return truncatedFields;
+  }
+
+  /** Time spent mapping and sending {@code type} calls. */
+  public Histogram mappingLatency(CallType type) {
+    return mappingLatency[type.ordinal()];
+  }
+
+  /** Number of flushes. */
+  public long flushes() {
+    return flushLatency.count();
+  }
+
+  /** Number of flush requests folded into an already scheduled flush. */
+  public long coalescedFlushes() {
+    return coalescedFlushes;
+  }
+
+  /**
+   * Number of calls asynchronous dispatch dropped because its queue was full, under the {@code
+   * dropNewest} and {@code dropOldest} overflow policies, or because it was shut down.
+   */
+  public long droppedCalls() {
+    return droppedCalls;
+  }
+
+  /** Time spent in flush, including draining queued hits. */
+  public Histogram flushLatency() {
+    return flushLatency;
+  }
+
+  @Override public String toString() {
+    StringBuilder builder = new StringBuilder("MetricsSnapshot{");
+    for (HitType type : HitType.values()) {
+      builder.append(type.name().toLowerCase(Locale.US)).append("Hits=").append(hits(type))
+          .append(", ");
+    }
+    builder.append("additionalTrackerHits=").append(additionalTrackerHits)
+        .append(", setCalls=").append(setCalls)
+        .append(", skippedSetCalls=").append(skippedSetCalls)
+        .append(", sampledOut=").append(sampledOut)
+        .append(", suppressedScreens=").append(suppressedScreens)
+        .append(", rateLimited=").append(rateLimited)
+        .append(", hitBytes=").append(hitBytes)
+        .append(", splitHits=").append(splitHits)
+        .append(", truncatedFields=").append(truncatedFields);
+    for (CallType type : CallType.values()) {
+      builder.append(", ").append(type.name().toLowerCase(Locale.US)).append("Latency=")
+          .append(mappingLatency(type));
+    }
+    return builder.append(", flushLatency=").append(flushLatency)
+        .append(", coalescedFlushes=").append(coalescedFlushes)
+        .append(", droppedCalls=").append(droppedCalls)
+        .append('}')
+        .toString();
+  }
+
+  /**
+   * Latencies bucketed by powers of two microseconds: bucket {@code i} counts latencies below
+   * {@code 2^i} microseconds (and at least {@code 2^(i-1)}), the last bucket counts everything
+   * slower.
+   */
+  public static final class Histogram {
+    private final long[] counts;
+    private final long totalNanos;
+
+    Histogram(long[] counts, long totalNanos) {
+      this.counts = counts;
+      this.totalNanos = totalNanos;
+    }
+
+    /** Number of buckets. */
+    public int buckets() {
+      return counts.length;
+    }
+
+    /** Number of latencies recorded in bucket {@code index}. */
+    public long count(int index) {
+      return counts[index];
+    }
+
+    /** Exclusive upper bound of bucket {@code index} in microseconds. */
+    public long upperBoundMicros(int index) {
+      return index == counts.length - 1 ? Long.MAX_VALUE : 1L << index;
+    }
+
+    /** Number of latencies recorded. */
+    public long count() {
+      long count = 0;
+      for (long bucket : counts) {
+        count += bucket;
+      }
+      return count;
+    }
+
+    /** Sum of every latency recorded, in nanoseconds. */
+    public long totalNanos() {
+      return totalNanos;
+    }
+
+    /** Mean latency in nanoseconds, or 0 if nothing was recorded. */
+    public long meanNanos() {
+      long count = count();
+      return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * Upper bound in microseconds of the bucket containing the {@code percentile} (between 0 and
+     * 100) latency, or 0 if nothing was recorded.
+     */
+    public long percentileMicros(double percentile) {
+      long count = count();
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100 * count);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return upperBoundMicros(i);
+        }
+      }
+      return upperBoundMicros(counts.length - 1);
+    }
+
+    @Override public String toString() {
+      return "Histogram{count=" + count() + ", meanNanos=" + meanNanos() + ", p50<"
+          + percentileMicros(50) + "us, p99<" + percentileMicros(99) + "us}";
+    }
+  }
+}
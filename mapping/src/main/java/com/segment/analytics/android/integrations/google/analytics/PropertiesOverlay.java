@@ -0,0 +1,139 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only view of product properties layered over event properties, i.e. the result of
+ * {@code putAll(eventProperties); putAll(productProperties)} without copying either map.
+ *
+ * Supports lookups, which {@link Values} reads through, and entry iteration. One instance is
+ * reused for every product of an event via {@link #overlay}, so it must not escape the mapping
+ * call.
+ */
+final class PropertiesOverlay extends AbstractMap<String, Object> {
+  private final Map<String, Object> base;
+  private Map<String, Object> top;
+  private final Set<Map.Entry<String, Object>> entrySet = new EntrySet();
+
+  PropertiesOverlay(Map<String, Object> base) {
+    this.base = base;
+  }
+
+  /** Point this view at {@code top}, replacing the previous product. */
+  PropertiesOverlay overlay(Map<String, Object> top) {
+    this.top = top;
+    return this;
+  }
+
+  @Override public Object get(Object key) {
+    if (top.containsKey(key)) {
+      return top.get(key);
+    }
+    return base.get(key);
+  }
+
+  @Override public boolean containsKey(Object key) {
+    return top.containsKey(key) || base.containsKey(key);
+  }
+
+  @Override public int size() {
+    int size = top.size();
+    for (String key : base.keySet()) {
+      if (!top.containsKey(key)) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  /** An upper bound of {@link #size()} that doesn't look for shadowed keys. */
+  int maxSize() {
+    return top.size() + base.size();
+  }
+
+  @Override public boolean isEmpty() {
+    return top.isEmpty() && base.isEmpty();
+  }
+
+  @Override public Set<Map.Entry<String, Object>> entrySet() {
+    return entrySet;
+  }
+
+  @Override public Object put(String key, Object value) {
+    throw new UnsupportedOperationException("PropertiesOverlay is read-only.");
+  }
+
+  @Override public void putAll(Map<? extends String, ?> map) {
+    throw new UnsupportedOperationException("PropertiesOverlay is read-only.");
+  }
+
+  @Override public Object remove(Object key) {
+    throw new UnsupportedOperationException("PropertiesOverlay is read-only.");
+  }
+
+  @Override public void clear() {
+    throw new UnsupportedOperationException("PropertiesOverlay is read-only.");
+  }
+
+  private final class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+    @Override public Iterator<Map.Entry<String, Object>> iterator() {
+      return new EntryIterator(top, base);
+    }
+
+    @Override public int size() {
+      return PropertiesOverlay.this.size();
+    }
+  }
+
+  /** Iterates every entry of {@code top}, then the entries of {@code base} it doesn't shadow. */
+  private static final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+    private final Map<String, Object> top;
+    private final Iterator<Map.Entry<String, Object>> topIterator;
+    private final Iterator<Map.Entry<String, Object>> baseIterator;
+    private Map.Entry<String, Object> next;
+
+    EntryIterator(Map<String, Object> top, Map<String, Object> base) {
+      this.top = top;
+      this.topIterator = top.entrySet().iterator();
+      this.baseIterator = base.entrySet().iterator();
+      advance();
+    }
+
+    private void advance() {
+      if (topIterator.hasNext()) {
+        next = topIterator.next();
+        return;
+      }
+      while (baseIterator.hasNext()) {
+        Map.Entry<String, Object> entry = baseIterator.next();
+        if (!top.containsKey(entry.getKey())) {
+          next = entry;
+          return;
+        }
+      }
+      next = null;
+    }
+
+    @Override public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override public Map.Entry<String, Object> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, Object> entry = next;
+      advance();
+      return entry;
+    }
+
+    @Override public void remove() {
+      throw new UnsupportedOperationException("PropertiesOverlay is read-only.");
+    }
+  }
+}
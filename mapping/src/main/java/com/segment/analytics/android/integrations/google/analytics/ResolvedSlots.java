@@ -0,0 +1,111 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.Map;
+
+/**
+ * The custom dimension and metric values of one set of properties, resolved against the
+ * dimension and metric mappings in a single pass, so they can be set on both a product and its
+ * hit without walking the properties again.
+ *
+ * The pass visits whichever side is smaller: every mapped property name when only a few are
+ * mapped, or every property entry when the mapping is larger than the properties.
+ */
+final class ResolvedSlots {
+  static final ResolvedSlots EMPTY = new ResolvedSlots(0, 0);
+
+  private final int[] dimensionIndexes;
+  private final String[] dimensions;
+  private int dimensionCount;
+  private final int[] metricIndexes;
+  private final float[] metrics;
+  private int metricCount;
+
+  private ResolvedSlots(int maxDimensions, int maxMetrics) {
+    dimensionIndexes = new int[maxDimensions];
+    dimensions = new String[maxDimensions];
+    metricIndexes = new int[maxMetrics];
+    metrics = new float[maxMetrics];
+  }
+
+  static ResolvedSlots resolve(CustomMapping customDimensions, CustomMapping customMetrics,
+      Map<String, Object> properties) {
+    int mapped = customDimensions.size() + customMetrics.size();
+    if (mapped == 0 || properties.isEmpty()) {
+      return EMPTY;
+    }
+    // Each mapped property fills at most one slot of each mapping.
+    ResolvedSlots slots = new ResolvedSlots(customDimensions.size(), customMetrics.size());
+    if (mapped < sizeOf(properties)) {
+      for (Map.Entry<String, CustomMapping.Slot> dimension : customDimensions.entries()) {
+        if (properties.containsKey(dimension.getKey())) {
+          slots.addDimension(dimension.getValue(), properties.get(dimension.getKey()));
+        }
+      }
+      for (Map.Entry<String, CustomMapping.Slot> metric : customMetrics.entries()) {
+        if (properties.containsKey(metric.getKey())) {
+          slots.addMetric(metric.getValue(), properties.get(metric.getKey()));
+        }
+      }
+    } else {
+      for (Map.Entry<String, Object> entry : properties.entrySet()) {
+        String property = entry.getKey();
+        CustomMapping.Slot dimension = customDimensions.get(property);
+        if (dimension != null) {
+          slots.addDimension(dimension, entry.getValue());
+        }
+        CustomMapping.Slot metric = customMetrics.get(property);
+        if (metric != null) {
+          slots.addMetric(metric, entry.getValue());
+        }
+      }
+    }
+    return slots;
+  }
+
+  // PropertiesOverlay.size() walks the event properties, an upper bound is good enough here.
+  private static int sizeOf(Map<String, Object> properties) {
+    if (properties instanceof PropertiesOverlay) {
+      return ((PropertiesOverlay) properties).maxSize();
+    }
+    return properties.size();
+  }
+
+  private void addDimension(CustomMapping.Slot slot, Object value) {
+    dimensionIndexes[dimensionCount] = slot.index;
+    dimensions[dimensionCount] = String.valueOf(value);
+    dimensionCount++;
+  }
+
+  private void addMetric(CustomMapping.Slot slot, Object value) {
+    metricIndexes[metricCount] = slot.index;
+    metrics[metricCount] = Values.coerceToFloat(value, 0);
+    metricCount++;
+  }
+
+  boolean isEmpty() {
+    return dimensionCount == 0 && metricCount == 0;
+  }
+
+  /** Set every resolved dimension and metric on the hit. */
+  void applyTo(HitParameters hitBuilder) {
+    for (int i = 0; i < dimensionCount; i++) {
+      hitBuilder.setCustomDimension(dimensionIndexes[i], dimensions[i]);
+    }
+    for (int i = 0; i < metricCount; i++) {
+      hitBuilder.setCustomMetric(metricIndexes[i], metrics[i]);
+    }
+  }
+
+  /**
+   * Set every resolved dimension and metric on the product whose keys start with {@code
+   * product}. Product metrics are integers.
+   */
+  void applyToProduct(HitWriter hitWriter, String product) {
+    for (int i = 0; i < dimensionCount; i++) {
+      hitWriter.setProductCustomDimension(product, dimensionIndexes[i], dimensions[i]);
+    }
+    for (int i = 0; i < metricCount; i++) {
+      hitWriter.setProductCustomMetric(product, metricIndexes[i], (int) metrics[i]);
+    }
+  }
+}
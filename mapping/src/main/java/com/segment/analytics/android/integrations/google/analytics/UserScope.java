@@ -0,0 +1,76 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The user scoped parameters identify resolved for a tracker ({@code &uid}, {@code &cdN} and
+ * {@code &cmN}). Instances are immutable: identify builds a new scope with {@link #with} and swaps
+ * it in, and every hit is merged with whichever scope was current when it was sent, so hits never
+ * see a half applied identify and sending doesn't touch shared tracker state.
+ */
+final class UserScope {
+  static final UserScope EMPTY = new UserScope(Collections.<String, String>emptyMap());
+
+  private final Map<String, String> values;
+
+  private UserScope(Map<String, String> values) {
+    this.values = values;
+  }
+
+  /**
+   * Returns a scope with {@code updates} applied, a {@code null} value removing its parameter, or
+   * this scope if none of them changes anything.
+   */
+  UserScope with(Map<String, String> updates) {
+    if (changes(updates) == 0) {
+      return this;
+    }
+    Map<String, String> copy = new HashMap<>((values.size() + updates.size()) * 4 / 3 + 1);
+    copy.putAll(values);
+    for (Map.Entry<String, String> update : updates.entrySet()) {
+      if (update.getValue() == null) {
+        copy.remove(update.getKey());
+      } else {
+        copy.put(update.getKey(), update.getValue());
+      }
+    }
+    return new UserScope(Collections.unmodifiableMap(copy));
+  }
+
+  /** Number of {@code updates} that would change this scope. */
+  int changes(Map<String, String> updates) {
+    int changes = 0;
+    for (Map.Entry<String, String> update : updates.entrySet()) {
+      String current = values.get(update.getKey());
+      String value = update.getValue();
+      if (current == null ? value != null : !current.equals(value)) {
+        changes++;
+      }
+    }
+    return changes;
+  }
+
+  /** Add every parameter {@code hit} doesn't set itself, as a tracker would, and return it. */
+  Map<String, String> applyTo(Map<String, String> hit) {
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      if (!hit.containsKey(entry.getKey())) {
+        hit.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return hit;
+  }
+
+  String get(String key) {
+    return values.get(key);
+  }
+
+  int size() {
+    return values.size();
+  }
+
+  @Override public String toString() {
+    return values.toString();
+  }
+}
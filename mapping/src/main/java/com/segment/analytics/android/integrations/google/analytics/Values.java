@@ -0,0 +1,143 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed reads of Segment payload maps, coercing values exactly like the getters of Segment's
+ * {@code ValueMap} and {@code Properties} do, so the mapping core can read any {@code Map} and map
+ * it the same way.
+ */
+final class Values {
+  private Values() {
+    throw new AssertionError("No instances.");
+  }
+
+  /** Like {@code ValueMap.getString}: the value as a string, or {@code null}. */
+  static String getString(Map<String, Object> map, String key) {
+    Object value = map.get(key);
+    if (value instanceof String) {
+      return (String) value;
+    }
+    return value == null ? null : String.valueOf(value);
+  }
+
+  static double getDouble(Map<String, Object> map, String key, double defaultValue) {
+    Object value = map.get(key);
+    if (value instanceof Double) {
+      return (Double) value;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof String) {
+      try {
+        return Double.valueOf((String) value);
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return defaultValue;
+  }
+
+  static int getInt(Map<String, Object> map, String key, int defaultValue) {
+    Object value = map.get(key);
+    if (value instanceof Integer) {
+      return (Integer) value;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    }
+    if (value instanceof String) {
+      try {
+        return Integer.valueOf((String) value);
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return defaultValue;
+  }
+
+  static boolean getBoolean(Map<String, Object> map, String key, boolean defaultValue) {
+    Object value = map.get(key);
+    if (value instanceof Boolean) {
+      return (Boolean) value;
+    }
+    if (value instanceof String) {
+      return Boolean.valueOf((String) value);
+    }
+    return defaultValue;
+  }
+
+  /** The nested map at {@code key}, or {@code null} if it isn't one. */
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> getMap(Map<String, Object> map, String key) {
+    Object value = map.get(key);
+    return value instanceof Map ? (Map<String, Object>) value : null;
+  }
+
+  /**
+   * Like {@code ValueMap.getList(key, ValueMap.class)}: every map in the list at {@code key},
+   * skipping anything else, or {@code null} if it isn't a list.
+   */
+  @SuppressWarnings("unchecked")
+  static List<Map<String, Object>> getMaps(Map<String, Object> map, String key) {
+    Object value = map.get(key);
+    if (!(value instanceof List)) {
+      return null;
+    }
+    List<?> list = (List<?>) value;
+    if (list.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Map<String, Object>> maps = new ArrayList<>(list.size());
+    for (Object item : list) {
+      if (item instanceof Map) {
+        maps.add((Map<String, Object>) item);
+      }
+    }
+    return maps;
+  }
+
+  /** Like {@code Properties.value()}: {@code value}, falling back to {@code revenue}. */
+  static double value(Map<String, Object> properties) {
+    double value = getDouble(properties, "value", 0);
+    return value != 0 ? value : getDouble(properties, "revenue", 0);
+  }
+
+  /** Like {@code Properties.total()}: {@code total}, falling back to {@code revenue} then value. */
+  static double total(Map<String, Object> properties) {
+    double total = getDouble(properties, "total", 0);
+    if (total != 0) {
+      return total;
+    }
+    double revenue = getDouble(properties, "revenue", 0);
+    return revenue != 0 ? revenue : value(properties);
+  }
+
+  /** Like {@code Utils.coerceToFloat}. */
+  static float coerceToFloat(Object value, float defaultValue) {
+    if (value instanceof Float) {
+      return (Float) value;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).floatValue();
+    }
+    if (value instanceof String) {
+      try {
+        return Float.valueOf((String) value);
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return defaultValue;
+  }
+
+  /** Like {@code Utils.isNullOrEmpty}: {@code null}, empty or only whitespace. */
+  static boolean isNullOrEmpty(String text) {
+    return text == null || text.trim().isEmpty();
+  }
+
+  static boolean isNullOrEmpty(Map<?, ?> map) {
+    return map == null || map.isEmpty();
+  }
+}
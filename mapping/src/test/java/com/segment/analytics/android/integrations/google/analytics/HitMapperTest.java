@@ -0,0 +1,216 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.android.integrations.google.analytics.EventClassifier.EventType;
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.HitType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Runs on a plain JVM, without Android, Play Services or Segment classes. */
+public class HitMapperTest {
+  private final List<HitType> types = new ArrayList<>();
+  private final List<Map<String, String>> hits = new ArrayList<>();
+  private final List<String> screenNames = new ArrayList<>();
+  private final HitSink sink = new HitSink() {
+    @Override public void send(HitType type, Map<String, String> hit,
+        Map<String, Object> properties, List<? extends Map<String, Object>> products) {
+      types.add(type);
+      hits.add(hit);
+    }
+
+    @Override public void setScreenName(String screenName) {
+      screenNames.add(screenName);
+    }
+
+    @Override public boolean needsProducts() {
+      return false;
+    }
+  };
+  private IntegrationMetrics metrics;
+  private HitMapper mapper;
+
+  @Before public void setUp() {
+    metrics = new IntegrationMetrics();
+    mapper = new HitMapper(new HashMap<String, Object>(), sink, metrics, MappingLogger.NONE);
+  }
+
+  @Test public void settingsConfigureMapping() {
+    Map<String, Object> settings = map("sendUserId", "true", "productsPerHit", 500,
+        "batchProductEvents", true, "dimensions", map("tab", "dimension2", "bad", "dim"),
+        "metrics", map("score", "metric1"), "ecommerceEvents", map("Cart Item Added", "add"));
+    HitMapper mapper = new HitMapper(settings, sink, metrics, MappingLogger.NONE);
+
+    assertTrue(mapper.sendUserId);
+    assertTrue(mapper.batchProductEvents);
+    assertEquals(HitMapper.MAX_PRODUCTS_PER_HIT, mapper.productsPerHit);
+    assertEquals(1, mapper.customDimensions.size());
+    assertEquals("&cd2", mapper.customDimensions.get("tab").key);
+    assertEquals("&cm1", mapper.customMetrics.get("score").key);
+    assertEquals(EventType.PRODUCT_ADDED, mapper.eventClassifier.classify("cart item added"));
+  }
+
+  @Test public void track() {
+    mapper.customDimensions = CustomMapping.dimensions(map("tab", "dimension2"),
+        MappingLogger.NONE);
+
+    EventType type = mapper.mapTrack("Clicked", map("category", "nav", "label", "home",
+        "revenue", "12.5", "tab", 3), null);
+
+    assertEquals(EventType.PLAIN, type);
+    assertEquals(Arrays.asList(HitType.EVENT), types);
+    assertEquals(hit("&t", "event", "&ea", "Clicked", "&ec", "nav", "&el", "home", "&ev", "12",
+        "&cd2", "3"), hits.get(0));
+  }
+
+  @Test public void screen() {
+    Map<String, Object> campaign =
+        map("source", "email", "medium", "online", "name", "spring sale");
+
+    mapper.mapScreen("Home", null, map(), campaign);
+
+    assertEquals(Arrays.asList("Home"), screenNames);
+    assertEquals(Arrays.asList(HitType.SCREENVIEW), types);
+    // Built like Uri.Builder and parsed like setCampaignParamsFromUrl, so values stay encoded.
+    Map<String, String> hit = hits.get(0);
+    assertEquals("screenview", hit.get("&t"));
+    assertEquals("null", hit.get("&cc"));
+    assertEquals("email", hit.get("&cs"));
+    assertEquals("online", hit.get("&cm"));
+    assertEquals("spring%20sale", hit.get("&cn"));
+    assertEquals(1, mapper.campaignCache.size());
+  }
+
+  @Test public void screenNamedLikeProductEvent() {
+    mapper.mapScreen("Viewed Product", null, map("id", "p1", "price", 2), null);
+
+    assertEquals(Arrays.asList(HitType.PRODUCT, HitType.SCREENVIEW), types);
+    assertEquals(hit("&t", "event", "&pa", "detail", "&ea", "Product Viewed",
+        "&ec", "EnhancedEcommerce", "&pr1id", "p1", "&pr1nm", null, "&pr1ca", "All",
+        "&pr1pr", "2.0", "&pr1qt", "0"), hits.get(0));
+  }
+
+  @Test public void orderCompleted() {
+    List<Map<String, Object>> products = new ArrayList<>();
+    products.add(map("id", "a", "name", "A", "price", 1.5, "quantity", 2));
+    products.add(map("id", "b", "name", "B", "price", "2", "quantity", "1"));
+    products.add(null);
+
+    mapper.mapTrack("Order Completed", map("orderId", "o1", "revenue", 10, "tax", 1,
+        "products", products), null);
+
+    assertEquals(Arrays.asList(HitType.TRANSACTION, HitType.EVENT), types);
+    assertEquals(hit("&t", "event", "&pa", "purchase", "&ti", "o1", "&tr", "10.0", "&tt", "1.0",
+        "&ts", "0.0", "&ec", "EnhancedEcommerce",
+        "&pr1id", "a", "&pr1nm", "A", "&pr1pr", "1.5", "&pr1qt", "2",
+        "&pr2id", "b", "&pr2nm", "B", "&pr2pr", "2.0", "&pr2qt", "1"), hits.get(0));
+  }
+
+  @Test public void batchedProductEvent() {
+    mapper.batchProductEvents = true;
+    mapper.productsPerHit = 2;
+    mapper.customDimensions = CustomMapping.dimensions(map("color", "dimension1"),
+        MappingLogger.NONE);
+    List<Map<String, Object>> products = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      products.add(map("id", "p" + i, "color", "red"));
+    }
+
+    mapper.sendProductEvent("Product Added", "shoes", map("products", products));
+
+    assertEquals(Arrays.asList(HitType.PRODUCT, HitType.PRODUCT), types);
+    assertEquals("p1", hits.get(0).get("&pr2id"));
+    assertEquals("red", hits.get(0).get("&pr2cd1"));
+    assertEquals("shoes", hits.get(0).get("&pr2ca"));
+    assertNull(hits.get(0).get("&cd1"));
+    assertEquals("p2", hits.get(1).get("&pr1id"));
+    assertFalse(hits.get(1).containsKey("&pr2id"));
+  }
+
+  @Test public void userParameters() {
+    mapper.sendUserId = true;
+    CustomMapping dimensions = CustomMapping.dimensions(map("plan", "dimension3"),
+        MappingLogger.NONE);
+
+    assertEquals(hit("&uid", "user", "&cd3", "pro"), mapper.userParameters("user",
+        map("plan", "pro", "age", 30), dimensions, CustomMapping.EMPTY));
+  }
+
+  @Test public void campaignValuesAreEncodedLikeUri() {
+    StringBuilder encoded = new StringBuilder();
+    CampaignParams.encode(encoded, "a-z_A.Z~0!9*'() +&=/\u00e9\u20ac");
+    assertEquals("a-z_A.Z~0!9*'()%20%2B%26%3D%2F%C3%A9%E2%82%AC", encoded.toString());
+  }
+
+  @Test public void valuesCoerceLikeSegment() {
+    Map<String, Object> map = map("s", "1.5", "n", 2, "b", "true", "x", "x", "blank", " ");
+
+    assertEquals("2", Values.getString(map, "n"));
+    assertNull(Values.getString(map, "missing"));
+    assertEquals(1.5, Values.getDouble(map, "s", 0), 0);
+    assertEquals(7, Values.getDouble(map, "x", 7), 0);
+    assertEquals(2, Values.getInt(map, "n", 0));
+    assertEquals(3, Values.getInt(map, "s", 3));
+    assertTrue(Values.getBoolean(map, "b", false));
+    assertEquals(1.5f, Values.coerceToFloat("1.5", 0), 0);
+    assertTrue(Values.isNullOrEmpty(Values.getString(map, "blank")));
+    assertNull(Values.getMaps(map, "n"));
+  }
+
+  @Test public void propertiesOverlayReadsProductOverEventProperties() {
+    Map<String, Object> eventProperties = map("name", "event", "quantity", 1, "tag", "foo");
+    Map<String, Object> product = map("id", "id", "sku", "sku", "price", 10.5, "name", "product");
+
+    PropertiesOverlay overlay = new PropertiesOverlay(eventProperties).overlay(product);
+
+    assertEquals("id", Values.getString(overlay, "id"));
+    assertEquals("product", Values.getString(overlay, "name"));
+    assertEquals(10.5, Values.getDouble(overlay, "price", 0), 0);
+    assertEquals(1, Values.getInt(overlay, "quantity", 0));
+    assertEquals(6, overlay.size());
+
+    Map<String, Object> merged = new HashMap<>();
+    merged.putAll(eventProperties);
+    merged.putAll(product);
+    Map<String, Object> iterated = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : overlay.entrySet()) {
+      assertFalse(iterated.containsKey(entry.getKey()));
+      iterated.put(entry.getKey(), entry.getValue());
+    }
+    assertEquals(merged, iterated);
+
+    // The event properties are never modified.
+    assertEquals("event", eventProperties.get("name"));
+    assertEquals(3, eventProperties.size());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void propertiesOverlayIsReadOnly() {
+    new PropertiesOverlay(map()).overlay(map()).put("foo", "bar");
+  }
+
+  private static Map<String, Object> map(Object... keysAndValues) {
+    Map<String, Object> map = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return map;
+  }
+
+  private static Map<String, String> hit(String... keysAndValues) {
+    Map<String, String> hit = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      hit.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return hit;
+  }
+}
@@ -0,0 +1,98 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.AnalyticsContext;
+import com.segment.analytics.Properties;
+import com.segment.analytics.Properties.Product;
+import com.segment.analytics.Traits;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.Logger;
+import java.lang.reflect.Constructor;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.segment.analytics.Analytics.LogLevel.NONE;
+
+/** Realistic payload shapes shared by the benchmarks. */
+final class BenchmarkPayloads {
+  static final int CUSTOM_DIMENSIONS = 20;
+
+  private BenchmarkPayloads() {
+    throw new AssertionError("No instances.");
+  }
+
+  /** An integration wired to a {@link NoOpGoogleAnalytics}, with logging off as in production. */
+  static GoogleAnalyticsIntegration integration(NoOpGoogleAnalytics googleAnalytics) {
+    ValueMap dimensions = new ValueMap();
+    for (int i = 1; i <= CUSTOM_DIMENSIONS; i++) {
+      dimensions.put("dimension_property_" + i, "dimension" + i);
+    }
+    ValueMap settings = new ValueMap().putValue("mobileTrackingId", "UA-0000000-1")
+        .putValue("sendUserId", true)
+        .putValue("dimensions", dimensions)
+        .putValue("metrics", new ValueMap().putValue("score", "metric1"));
+    return new GoogleAnalyticsIntegration(null, googleAnalytics, settings, Logger.with(NONE));
+  }
+
+  /** A handful of unmapped properties, as sent with most events. */
+  static Properties plainProperties() {
+    return new Properties().putCategory("engagement")
+        .putValue("label", "hero")
+        .putValue("button_color", "blue")
+        .putValue("position", 3);
+  }
+
+  /** Properties that hit every mapped custom dimension and metric. */
+  static Properties customDimensionProperties() {
+    Properties properties = plainProperties();
+    for (int i = 1; i <= CUSTOM_DIMENSIONS; i++) {
+      properties.putValue("dimension_property_" + i, "value " + i);
+    }
+    return properties.putValue("score", 42);
+  }
+
+  static Properties order(int productCount) {
+    Product[] products = new Product[productCount];
+    for (int i = 0; i < productCount; i++) {
+      products[i] = new Product("product-" + i, "sku-" + i, 9.99 + i) //
+          .putName("Product " + i)
+          .putValue("quantity", 1 + i % 3)
+          .putValue("dimension_property_1", "variant " + i);
+    }
+    return new Properties().putOrderId("order-1")
+        .putTotal(123.45)
+        .putTax(9.5)
+        .putShipping(4.99)
+        .putCurrency("USD")
+        .putProducts(products);
+  }
+
+  static Traits traits() {
+    Traits traits = new Traits().putName("Jane Doe").putEmail("jane@example.com").putAge(30);
+    for (int i = 1; i <= CUSTOM_DIMENSIONS; i++) {
+      traits.putValue("dimension_property_" + i, "trait " + i);
+    }
+    return traits;
+  }
+
+  static AnalyticsContext campaignContext() {
+    AnalyticsContext.Campaign campaign = new AnalyticsContext.Campaign() //
+        .putSource("newsletter")
+        .putMedium("email")
+        .putName("spring_sale")
+        .putContent("hero_banner");
+    return context().putCampaign(campaign);
+  }
+
+  static AnalyticsContext context() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("traits", new Traits());
+    try {
+      Constructor<AnalyticsContext> constructor =
+          AnalyticsContext.class.getDeclaredConstructor(Map.class);
+      constructor.setAccessible(true);
+      return constructor.newInstance(map);
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.TrackPayload;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Throughput of mapping Enhanced Ecommerce events, by number of products in the payload. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EcommerceBenchmark {
+  @Param({ "1", "10", "100" }) int products;
+
+  NoOpGoogleAnalytics googleAnalytics;
+  GoogleAnalyticsIntegration integration;
+
+  Properties order;
+  TrackPayload orderCompleted;
+  TrackPayload productAdded;
+
+  @Setup public void setUp() {
+    googleAnalytics = new NoOpGoogleAnalytics();
+    integration = BenchmarkPayloads.integration(googleAnalytics);
+
+    order = BenchmarkPayloads.order(products);
+    orderCompleted = new TrackPayload.Builder().anonymousId("anonymous")
+        .event("Order Completed")
+        .properties(order)
+        .build();
+    productAdded = new TrackPayload.Builder().anonymousId("anonymous")
+        .event("Product Added")
+        .properties(order)
+        .build();
+  }
+
+  @Benchmark public long trackOrderCompleted() {
+    integration.track(orderCompleted);
+    return googleAnalytics.tracker.params;
+  }
+
+  @Benchmark public long trackProductAdded() {
+    integration.track(productAdded);
+    return googleAnalytics.tracker.params;
+  }
+
+  @Benchmark public long sendProductEvent() {
+    integration.mapper.sendProductEvent("Product Added", "catalog", order);
+    return googleAnalytics.tracker.params;
+  }
+}
@@ -0,0 +1,112 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of mapping non-ecommerce track, screen and identify calls to hits. Every call maps the
+ * same payload, so per-campaign and per-URL caches are warm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBenchmark {
+  NoOpGoogleAnalytics googleAnalytics;
+  GoogleAnalyticsIntegration integration;
+
+  TrackPayload plainTrack;
+  TrackPayload customDimensionTrack;
+  TrackPayload campaignTrack;
+  TrackPayload deepLinkTrack;
+  ScreenPayload plainScreen;
+  ScreenPayload campaignScreen;
+  IdentifyPayload identify;
+
+  @Setup public void setUp() {
+    googleAnalytics = new NoOpGoogleAnalytics();
+    integration = BenchmarkPayloads.integration(googleAnalytics);
+
+    plainTrack = new TrackPayload.Builder().anonymousId("anonymous")
+        .event("Button Clicked")
+        .properties(BenchmarkPayloads.plainProperties())
+        .build();
+    customDimensionTrack = new TrackPayload.Builder().anonymousId("anonymous")
+        .event("Button Clicked")
+        .properties(BenchmarkPayloads.customDimensionProperties())
+        .build();
+    campaignTrack = new TrackPayload.Builder().anonymousId("anonymous")
+        .event("Button Clicked")
+        .properties(BenchmarkPayloads.plainProperties())
+        .context(BenchmarkPayloads.campaignContext())
+        .build();
+    deepLinkTrack = new TrackPayload.Builder().anonymousId("anonymous")
+        .event("Deep Link Opened")
+        .properties(new Properties().putValue("url",
+            "app://open/sale?utm_source=newsletter&utm_medium=email&utm_campaign=spring_sale"
+                + "&utm_content=hero_banner&gclid=EAIaIQobChMI"))
+        .build();
+    plainScreen = new ScreenPayload.Builder().anonymousId("anonymous")
+        .name("Home")
+        .properties(BenchmarkPayloads.plainProperties())
+        .build();
+    campaignScreen = new ScreenPayload.Builder().anonymousId("anonymous")
+        .name("Home")
+        .properties(BenchmarkPayloads.plainProperties())
+        .context(BenchmarkPayloads.campaignContext())
+        .build();
+    identify = new IdentifyPayload.Builder().userId("user-1")
+        .traits(BenchmarkPayloads.traits())
+        .build();
+  }
+
+  @Benchmark public long trackPlain() {
+    integration.track(plainTrack);
+    return googleAnalytics.tracker.params;
+  }
+
+  @Benchmark public long trackCustomDimensions() {
+    integration.track(customDimensionTrack);
+    return googleAnalytics.tracker.params;
+  }
+
+  @Benchmark public long trackCampaign() {
+    integration.track(campaignTrack);
+    return googleAnalytics.tracker.params;
+  }
+
+  @Benchmark public long trackDeepLink() {
+    integration.track(deepLinkTrack);
+    return googleAnalytics.tracker.params;
+  }
+
+  @Benchmark public long screenPlain() {
+    integration.screen(plainScreen);
+    return googleAnalytics.tracker.params;
+  }
+
+  @Benchmark public long screenCampaign() {
+    integration.screen(campaignScreen);
+    return googleAnalytics.tracker.params;
+  }
+
+  @Benchmark public long identifyCustomDimensions() {
+    integration.identify(identify);
+    return googleAnalytics.tracker.params;
+  }
+}
@@ -0,0 +1,61 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import android.app.Activity;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link GoogleAnalytics} that hands out one {@link RecordingTracker} per tracking id, and
+ * counts activity reports and dispatches instead of talking to the Google Analytics SDK.
+ */
+class InMemoryGoogleAnalytics implements GoogleAnalytics {
+  private final Map<String, RecordingTracker> trackers = new LinkedHashMap<>();
+  private int activityStarts;
+  private int activityStops;
+  private int dispatches;
+
+  @Override public synchronized Tracker newTracker(String trackingId) {
+    RecordingTracker tracker = trackers.get(trackingId);
+    if (tracker == null) {
+      tracker = new RecordingTracker(trackingId);
+      trackers.put(trackingId, tracker);
+    }
+    return tracker;
+  }
+
+  @Override public synchronized void reportActivityStop(Activity activity) {
+    activityStops++;
+  }
+
+  @Override public synchronized void reportActivityStart(Activity activity) {
+    activityStarts++;
+  }
+
+  @Override public synchronized void dispatchLocalHits() {
+    dispatches++;
+  }
+
+  /** The tracker for {@code trackingId}, or {@code null} if none was created. */
+  synchronized RecordingTracker tracker(String trackingId) {
+    return trackers.get(trackingId);
+  }
+
+  /** Every tracker created so far, in creation order. */
+  synchronized List<RecordingTracker> trackers() {
+    return new ArrayList<>(trackers.values());
+  }
+
+  synchronized int activityStarts() {
+    return activityStarts;
+  }
+
+  synchronized int activityStops() {
+    return activityStops;
+  }
+
+  synchronized int dispatches() {
+    return dispatches;
+  }
+}
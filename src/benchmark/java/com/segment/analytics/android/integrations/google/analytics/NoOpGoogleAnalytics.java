@@ -0,0 +1,21 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import android.app.Activity;
+
+/** A {@link GoogleAnalytics} that hands out a single {@link NoOpTracker}. */
+class NoOpGoogleAnalytics implements GoogleAnalytics {
+  final NoOpTracker tracker = new NoOpTracker();
+
+  @Override public Tracker newTracker(String trackingId) {
+    return tracker;
+  }
+
+  @Override public void reportActivityStop(Activity activity) {
+  }
+
+  @Override public void reportActivityStart(Activity activity) {
+  }
+
+  @Override public void dispatchLocalHits() {
+  }
+}
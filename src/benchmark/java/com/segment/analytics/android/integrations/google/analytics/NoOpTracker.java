@@ -0,0 +1,31 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import android.content.Context;
+import java.util.Map;
+
+/** A {@link Tracker} that drops every hit, so benchmarks only measure the mapping. */
+class NoOpTracker implements Tracker {
+  /** Consumed by benchmarks so the JIT can't eliminate hit building as dead code. */
+  long params;
+
+  @Override public void send(Map<String, String> params) {
+    this.params += params.size();
+  }
+
+  @Override public void setScreenName(String name) {
+  }
+
+  @Override public void set(String key, String value) {
+    params++;
+  }
+
+  @Override public void setAnonymizeIp(boolean anonymizeIp) {
+  }
+
+  @Override public void setUncaughtExceptionReporter(Context context) {
+  }
+
+  @Override public com.google.android.gms.analytics.Tracker delegate() {
+    return null;
+  }
+}
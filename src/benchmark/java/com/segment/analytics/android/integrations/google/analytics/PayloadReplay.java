@@ -0,0 +1,370 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.CallType;
+import com.segment.analytics.integrations.BasePayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static com.segment.analytics.Analytics.LogLevel.NONE;
+
+/**
+ * Streams a corpus of captured Segment payloads, one JSON object per line, through a {@link
+ * GoogleAnalyticsIntegration} backed by an {@link InMemoryGoogleAnalytics}, and reports throughput,
+ * per call latency percentiles and the hits produced. Track, screen and identify payloads are
+ * replayed, anything else is counted as skipped.
+ *
+ * <pre>
+ *   ./gradlew replay -Preplay.corpus=traffic.jsonl
+ *   ./gradlew replay -Preplay.corpus=traffic.jsonl -Preplay.rate=500 -Preplay.settings=ga.json
+ * </pre>
+ */
+final class PayloadReplay {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String DEFAULT_TRACKING_ID = "UA-0000000-1";
+
+  private final GoogleAnalyticsIntegration integration;
+  private final double callsPerSecond;
+
+  /** Replay into {@code integration}, at most {@code callsPerSecond} calls a second, or 0. */
+  PayloadReplay(GoogleAnalyticsIntegration integration, double callsPerSecond) {
+    if (callsPerSecond < 0) {
+      throw new IllegalArgumentException("callsPerSecond < 0: " + callsPerSecond);
+    }
+    this.integration = integration;
+    this.callsPerSecond = callsPerSecond;
+  }
+
+  /** Replay every line of {@code corpus}, then flush so queued hits reach the trackers. */
+  Report replay(BufferedReader corpus) throws IOException {
+    Samples[] latencies = new Samples[CallType.values().length];
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = new Samples();
+    }
+    long intervalNanos = callsPerSecond == 0 ? 0 : (long) (1e9 / callsPerSecond);
+    long calls = 0;
+    long skipped = 0;
+    long start = System.nanoTime();
+    String line;
+    while ((line = corpus.readLine()) != null) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      BasePayload payload;
+      try {
+        payload = parse(line);
+      } catch (JSONException e) {
+        payload = null;
+      }
+      if (payload == null) {
+        skipped++;
+        continue;
+      }
+      if (intervalNanos > 0) {
+        // Pace against the start so a slow call doesn't push back every later one.
+        long wait = start + calls * intervalNanos - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      }
+      long callStart = System.nanoTime();
+      CallType type = replay(payload);
+      latencies[type.ordinal()].add(System.nanoTime() - callStart);
+      calls++;
+    }
+    integration.flushNow();
+    return new Report(calls, skipped, System.nanoTime() - start, latencies, integration.metrics());
+  }
+
+  private CallType replay(BasePayload payload) {
+    switch (payload.type()) {
+      case track:
+        integration.track((TrackPayload) payload);
+        return CallType.TRACK;
+      case screen:
+        integration.screen((ScreenPayload) payload);
+        return CallType.SCREEN;
+      case identify:
+        integration.identify((IdentifyPayload) payload);
+        return CallType.IDENTIFY;
+      default:
+        throw new AssertionError("Unexpected payload type " + payload.type());
+    }
+  }
+
+  /** Parse one captured payload, or return {@code null} if it isn't a track, screen or identify. */
+  static BasePayload parse(String line) throws JSONException {
+    Map<String, Object> json = toMap(new JSONObject(line));
+    String type = (String) json.get("type");
+    if ("track".equals(type)) {
+      TrackPayload.Builder builder = new TrackPayload.Builder().event((String) json.get("event"));
+      Map<String, Object> properties = map(json, "properties");
+      if (properties != null) {
+        builder.properties(properties);
+      }
+      return common(builder, json).build();
+    }
+    if ("screen".equals(type)) {
+      ScreenPayload.Builder builder = new ScreenPayload.Builder().name((String) json.get("name"))
+          .category((String) json.get("category"));
+      Map<String, Object> properties = map(json, "properties");
+      if (properties != null) {
+        builder.properties(properties);
+      }
+      return common(builder, json).build();
+    }
+    if ("identify".equals(type)) {
+      IdentifyPayload.Builder builder = new IdentifyPayload.Builder();
+      Map<String, Object> traits = map(json, "traits");
+      if (traits != null) {
+        builder.traits(traits);
+      }
+      return common(builder, json).build();
+    }
+    return null;
+  }
+
+  private static <B extends BasePayload.Builder<?, B>> B common(B builder,
+      Map<String, Object> json) {
+    String userId = (String) json.get("userId");
+    String anonymousId = (String) json.get("anonymousId");
+    if (userId != null) {
+      builder.userId(userId);
+    }
+    if (anonymousId != null) {
+      builder.anonymousId(anonymousId);
+    } else if (userId == null) {
+      // Payloads need one of the two, corpora scrubbed of identifiers may have neither.
+      builder.anonymousId("replay");
+    }
+    Map<String, Object> context = map(json, "context");
+    if (context != null) {
+      builder.context(context);
+    }
+    return builder;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> map(Map<String, Object> json, String key) {
+    Object value = json.get(key);
+    return value instanceof Map ? (Map<String, Object>) value : null;
+  }
+
+  private static Map<String, Object> toMap(JSONObject object) throws JSONException {
+    Map<String, Object> map = new LinkedHashMap<>(object.length() * 4 / 3 + 1);
+    Iterator<String> keys = object.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      map.put(key, fromJson(object.get(key)));
+    }
+    return map;
+  }
+
+  private static Object fromJson(Object value) throws JSONException {
+    if (value instanceof JSONObject) {
+      return toMap((JSONObject) value);
+    }
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      List<Object> list = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        list.add(fromJson(array.get(i)));
+      }
+      return list;
+    }
+    return value == JSONObject.NULL ? null : value;
+  }
+
+  /** Write every hit each tracker received as {@code {"trackingId": ..., "hit": {...}}} lines. */
+  static void writeHits(InMemoryGoogleAnalytics googleAnalytics, Writer writer)
+      throws IOException {
+    for (RecordingTracker tracker : googleAnalytics.trackers()) {
+      for (Map<String, String> hit : tracker.hits()) {
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("trackingId", tracker.trackingId);
+        line.put("hit", hit);
+        writer.write(new JSONObject(line).toString());
+        writer.write('\n');
+      }
+    }
+    writer.flush();
+  }
+
+  /**
+   * Usage: {@code PayloadReplay <corpus.jsonl> [--rate callsPerSecond] [--settings settings.json]
+   * [--report report.txt] [--hits hits.jsonl]}. Settings default to a single tracker with no other
+   * options. The report goes to standard output unless a report file is given.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("Usage: PayloadReplay <corpus.jsonl> [--rate callsPerSecond] "
+          + "[--settings settings.json] [--report report.txt] [--hits hits.jsonl]");
+      System.exit(2);
+    }
+    double rate = 0;
+    ValueMap settings = new ValueMap().putValue("mobileTrackingId", DEFAULT_TRACKING_ID);
+    String reportPath = null;
+    String hitsPath = null;
+    for (int i = 1; i + 1 < args.length; i += 2) {
+      if ("--rate".equals(args[i])) {
+        rate = Double.parseDouble(args[i + 1]);
+      } else if ("--settings".equals(args[i])) {
+        settings = new ValueMap(toMap(new JSONObject(read(args[i + 1]))));
+      } else if ("--report".equals(args[i])) {
+        reportPath = args[i + 1];
+      } else if ("--hits".equals(args[i])) {
+        hitsPath = args[i + 1];
+      } else {
+        throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+
+    InMemoryGoogleAnalytics googleAnalytics = new InMemoryGoogleAnalytics();
+    GoogleAnalyticsIntegration integration =
+        new GoogleAnalyticsIntegration(null, googleAnalytics, settings, Logger.with(NONE));
+    BufferedReader corpus =
+        new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), UTF_8));
+    Report report;
+    try {
+      report = new PayloadReplay(integration, rate).replay(corpus);
+    } finally {
+      corpus.close();
+    }
+    if (reportPath != null) {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(reportPath), UTF_8);
+      try {
+        writer.write(report.toString());
+        writer.write('\n');
+      } finally {
+        writer.close();
+      }
+    } else {
+      System.out.println(report);
+    }
+
+    if (hitsPath != null) {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(hitsPath), UTF_8);
+      try {
+        writeHits(googleAnalytics, writer);
+      } finally {
+        writer.close();
+      }
+    }
+    // Asynchronous dispatch and flush coalescing run on daemon threads, don't wait for them.
+    System.exit(0);
+  }
+
+  private static String read(String path) throws IOException {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(path), UTF_8));
+    try {
+      StringBuilder builder = new StringBuilder();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        builder.append(line).append('\n');
+      }
+      return builder.toString();
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** Per call latencies of one call type, kept exactly so percentiles aren't bucketed. */
+  private static final class Samples {
+    long[] nanos = new long[1024];
+    int size;
+
+    void add(long latency) {
+      if (size == nanos.length) {
+        nanos = Arrays.copyOf(nanos, size * 2);
+      }
+      nanos[size++] = latency;
+    }
+
+    long[] sorted() {
+      long[] sorted = Arrays.copyOf(nanos, size);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+  }
+
+  /** The outcome of a replay. */
+  static final class Report {
+    final long calls;
+    final long skippedLines;
+    final long elapsedNanos;
+    /** The integration's own counters once the replay was flushed. */
+    final MetricsSnapshot metrics;
+    private final long[][] latencies;
+
+    Report(long calls, long skippedLines, long elapsedNanos, Samples[] samples,
+        MetricsSnapshot metrics) {
+      this.calls = calls;
+      this.skippedLines = skippedLines;
+      this.elapsedNanos = elapsedNanos;
+      this.metrics = metrics;
+      this.latencies = new long[samples.length][];
+      for (int i = 0; i < samples.length; i++) {
+        latencies[i] = samples[i].sorted();
+      }
+    }
+
+    /** Calls replayed per second of wall time, including pacing. */
+    double throughput() {
+      return elapsedNanos == 0 ? 0 : calls * 1e9 / elapsedNanos;
+    }
+
+    long calls(CallType type) {
+      return latencies[type.ordinal()].length;
+    }
+
+    /** The {@code percentile} (between 0 and 100) latency of {@code type} calls, or 0. */
+    long percentileNanos(CallType type, double percentile) {
+      long[] sorted = latencies[type.ordinal()];
+      if (sorted.length == 0) {
+        return 0;
+      }
+      int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+      return sorted[Math.max(rank - 1, 0)];
+    }
+
+    @Override public String toString() {
+      StringBuilder builder = new StringBuilder();
+      builder.append(String.format(Locale.US,
+          "%d calls in %.1fms (%.0f calls/s), %d lines skipped%n", calls,
+          elapsedNanos / 1e6, throughput(), skippedLines));
+      for (CallType type : CallType.values()) {
+        if (calls(type) == 0) {
+          continue;
+        }
+        builder.append(String.format(Locale.US,
+            "%-8s n=%d p50=%dns p90=%dns p99=%dns p99.9=%dns max=%dns%n",
+            type.name().toLowerCase(Locale.US), calls(type), percentileNanos(type, 50),
+            percentileNanos(type, 90), percentileNanos(type, 99), percentileNanos(type, 99.9),
+            percentileNanos(type, 100)));
+      }
+      return builder.append(metrics).toString();
+    }
+  }
+}
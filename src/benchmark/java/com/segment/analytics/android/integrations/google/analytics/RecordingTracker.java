@@ -0,0 +1,74 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import android.content.Context;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link Tracker} that keeps every hit sent and every parameter set, in order, so tests and the
+ * {@link PayloadReplay} can inspect what the integration produced. Safe to use from the hit
+ * dispatcher thread.
+ */
+class RecordingTracker implements Tracker {
+  final String trackingId;
+  private final List<Map<String, String>> hits = new ArrayList<>();
+  private final Map<String, String> parameters = new LinkedHashMap<>();
+  private String screenName;
+  private boolean anonymizeIp;
+
+  RecordingTracker(String trackingId) {
+    this.trackingId = trackingId;
+  }
+
+  @Override public synchronized void send(Map<String, String> params) {
+    // The integration doesn't reuse hits, but copy anyway so later mutation can't rewrite history.
+    hits.add(Collections.unmodifiableMap(new LinkedHashMap<>(params)));
+  }
+
+  @Override public synchronized void setScreenName(String name) {
+    screenName = name;
+  }
+
+  @Override public synchronized void set(String key, String value) {
+    parameters.put(key, value);
+  }
+
+  @Override public synchronized void setAnonymizeIp(boolean anonymizeIp) {
+    this.anonymizeIp = anonymizeIp;
+  }
+
+  @Override public void setUncaughtExceptionReporter(Context context) {
+  }
+
+  @Override public com.google.android.gms.analytics.Tracker delegate() {
+    return null;
+  }
+
+  /** Every hit sent so far, oldest first. */
+  synchronized List<Map<String, String>> hits() {
+    return new ArrayList<>(hits);
+  }
+
+  /** The latest value of every parameter set so far. */
+  synchronized Map<String, String> parameters() {
+    return new LinkedHashMap<>(parameters);
+  }
+
+  synchronized String screenName() {
+    return screenName;
+  }
+
+  synchronized boolean anonymizeIp() {
+    return anonymizeIp;
+  }
+
+  /** Forget every hit and parameter recorded so far. */
+  synchronized void clear() {
+    hits.clear();
+    parameters.clear();
+    screenName = null;
+  }
+}
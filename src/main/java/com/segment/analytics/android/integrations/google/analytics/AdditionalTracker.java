@@ -0,0 +1,119 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A Google Analytics property that receives a copy of every hit sent to the primary tracker.
+ *
+ * Hits are built once. A property without its own custom dimension and metric mapping is sent the
+ * primary hit as is. A property with its own mapping is sent a copy of the hit whose custom
+ * dimensions and metrics ({@code &cdN}, {@code &cmN}, {@code &prXcdN} and {@code &prXcmN}) are
+ * re-resolved from the same properties with its mapping, so only that part is repeated.
+ */
+final class AdditionalTracker {
+  final String trackingId;
+  final Tracker tracker;
+  /** This property's mappings, or {@code null} to share the primary mapping. */
+  final CustomMapping customDimensions;
+  final CustomMapping customMetrics;
+  /**
+   * The user scoped parameters identify last resolved with this property's mapping, merged into
+   * its remapped hits. Unused when sharing the primary mapping.
+   */
+  final AtomicReference<UserScope> userScope = new AtomicReference<>(UserScope.EMPTY);
+
+  AdditionalTracker(String trackingId, Tracker tracker, CustomMapping customDimensions,
+      CustomMapping customMetrics) {
+    this.trackingId = trackingId;
+    this.tracker = tracker;
+    this.customDimensions = customDimensions;
+    this.customMetrics = customMetrics;
+  }
+
+  boolean sharesMapping() {
+    return customDimensions == null;
+  }
+
+  /**
+   * Returns {@code hit} with its custom dimensions and metrics replaced by the ones this property
+   * maps from {@code properties} (for the hit) and {@code products} (for product {@code i + 1}).
+   */
+  Map<String, String> remap(Map<String, String> hit, Map<String, Object> properties,
+      List<? extends Map<String, Object>> products) {
+    if (sharesMapping()) {
+      return hit;
+    }
+    Map<String, String> remapped = new HashMap<>(hit.size() * 4 / 3 + 1);
+    for (Map.Entry<String, String> entry : hit.entrySet()) {
+      if (!isCustomDimensionOrMetric(entry.getKey())) {
+        remapped.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (properties != null) {
+      for (Map.Entry<String, Object> entry : properties.entrySet()) {
+        CustomMapping.Slot dimension = customDimensions.get(entry.getKey());
+        if (dimension != null) {
+          remapped.put(dimension.key, String.valueOf(entry.getValue()));
+        }
+        CustomMapping.Slot metric = customMetrics.get(entry.getKey());
+        if (metric != null) {
+          // Matches HitBuilder.setCustomMetric(int, float).
+          remapped.put(metric.key, Float.toString(Values.coerceToFloat(entry.getValue(), 0)));
+        }
+      }
+    }
+    if (products != null) {
+      for (int i = 0; i < products.size(); i++) {
+        String prefix = "&pr" + (i + 1);
+        for (Map.Entry<String, Object> entry : products.get(i).entrySet()) {
+          CustomMapping.Slot dimension = customDimensions.get(entry.getKey());
+          if (dimension != null) {
+            remapped.put(prefix + "cd" + dimension.index, String.valueOf(entry.getValue()));
+          }
+          CustomMapping.Slot metric = customMetrics.get(entry.getKey());
+          if (metric != null) {
+            // Matches Product.setCustomMetric(int, int).
+            remapped.put(prefix + "cm" + metric.index,
+                Integer.toString((int) Values.coerceToFloat(entry.getValue(), 0)));
+          }
+        }
+      }
+    }
+    return remapped;
+  }
+
+  // "&cd3", "&cm12", "&pr1cd3" and "&pr10cm2" are, "&cm" (campaign medium) and "&pr1id" are not.
+  static boolean isCustomDimensionOrMetric(String key) {
+    int i;
+    if (key.startsWith("&cd") || key.startsWith("&cm")) {
+      i = 3;
+    } else if (key.startsWith("&pr")) {
+      i = 3;
+      while (i < key.length() && isDigit(key.charAt(i))) {
+        i++;
+      }
+      if (i == 3 || !(key.startsWith("cd", i) || key.startsWith("cm", i))) {
+        return false;
+      }
+      i += 2;
+    } else {
+      return false;
+    }
+    if (i == key.length()) {
+      return false;
+    }
+    for (; i < key.length(); i++) {
+      if (!isDigit(key.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
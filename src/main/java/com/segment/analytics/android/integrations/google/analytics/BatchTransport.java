@@ -0,0 +1,362 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.integrations.Logger;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Queues Measurement Protocol hits from every {@link MeasurementProtocolTracker} and POSTs them to
+ * the {@code /batch} endpoint, up to {@link #MAX_HITS_PER_BATCH} hits per request, from a single
+ * background thread.
+ *
+ * A request goes out as soon as a batch is full, and {@link #dispatch} sends whatever is queued,
+ * as does a periodic dispatch. Request bodies are gzipped, and responses are read to the end
+ * without disconnecting, so {@link HttpURLConnection} keeps the connection alive for the next
+ * batch. Batches that fail with an I/O error or a server error stay queued for the next dispatch,
+ * and full batches stop going out on their own for a backoff delay that doubles with each failure.
+ *
+ * Every hit is sent with the client id ({@code &cid}), loaded on the background thread before the
+ * first batch, so reading it from disk never blocks the caller.
+ *
+ * The queue only lives in memory: hits that were not sent yet are lost if the process dies.
+ */
+class BatchTransport {
+  static final String DEFAULT_ENDPOINT = "https://www.google-analytics.com/batch";
+  // Limits of the /batch endpoint.
+  static final int MAX_HITS_PER_BATCH = 20;
+  static final int MAX_HIT_BYTES = 8 * 1024;
+  static final int MAX_BATCH_BYTES = 16 * 1024;
+  static final int DEFAULT_MAX_QUEUED_HITS = 1000;
+  /** How often queued hits are sent without a flush, bounding what a dying process loses. */
+  static final long DEFAULT_DISPATCH_PERIOD_MILLIS = TimeUnit.MINUTES.toMillis(2);
+  private static final long INITIAL_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+  private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(30);
+  // Google Analytics drops hits with a queue time (&qt) above 4 hours.
+  private static final long MAX_QUEUE_NANOS = TimeUnit.HOURS.toNanos(4);
+  private static final int TIMEOUT_MILLIS = 15000;
+  // What post adds to each hit: &cid= with a UUID, &qt= with the queue time and a newline.
+  private static final int HIT_SUFFIX_BYTES = 64;
+  private static final String THREAD_NAME = "Segment-GoogleAnalytics-Batch";
+
+  /** An encoded hit and when it was queued, to send its queue time. */
+  private static final class Hit {
+    final String payload;
+    final long queuedNanos;
+
+    Hit(String payload, long queuedNanos) {
+      this.payload = payload;
+      this.queuedNanos = queuedNanos;
+    }
+  }
+
+  private final URL endpoint;
+  private final Callable<String> clientIdLoader;
+  /** Loaded by the first send, only accessed on the executor. */
+  private String clientId;
+  private final int maxQueuedHits;
+  private final Logger logger;
+  /** Guarded by itself. */
+  private final Deque<Hit> queue = new ArrayDeque<>();
+  /** Whether a send of full batches is already scheduled, guarded by {@link #queue}. */
+  private boolean sendScheduled;
+  /** Failed batches in a row, and until when full batches wait for them, guarded by queue. */
+  private int consecutiveFailures;
+  private long backoffUntilNanos;
+  private final ScheduledExecutorService executor;
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong failedBatches = new AtomicLong();
+  private final AtomicLong droppedHits = new AtomicLong();
+
+  /**
+   * Send queued hits every {@code dispatchPeriodMillis}, or only when asked to if it is 0, with the
+   * client id {@code clientIdLoader} returns.
+   */
+  BatchTransport(URL endpoint, Callable<String> clientIdLoader, int maxQueuedHits,
+      long dispatchPeriodMillis, Logger logger) {
+    this.endpoint = endpoint;
+    this.clientIdLoader = clientIdLoader;
+    this.maxQueuedHits = maxQueuedHits;
+    this.logger = logger;
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (dispatchPeriodMillis > 0) {
+      executor.scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          if (!backingOff()) {
+            send(true);
+          }
+        }
+      }, dispatchPeriodMillis, dispatchPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Queue an encoded hit ({@code v=1&tid=...}, without {@code &cid}), sending a batch once {@link
+   * #MAX_HITS_PER_BATCH} are queued, unless batches are failing. When the queue is full the oldest
+   * hit is dropped.
+   */
+  void enqueue(String payload) {
+    if (payload.length() + HIT_SUFFIX_BYTES > MAX_HIT_BYTES) {
+      // Encoded hits are ASCII, so this is their size in bytes.
+      droppedHits.incrementAndGet();
+      logger.debug("Dropping a %s byte hit, above the Measurement Protocol limit.",
+          payload.length());
+      return;
+    }
+    boolean schedule = false;
+    synchronized (queue) {
+      if (queue.size() == maxQueuedHits) {
+        queue.removeFirst();
+        droppedHits.incrementAndGet();
+      }
+      queue.addLast(new Hit(payload, System.nanoTime()));
+      if (queue.size() >= MAX_HITS_PER_BATCH && !sendScheduled && !backingOff()) {
+        sendScheduled = true;
+        schedule = true;
+      }
+    }
+    if (schedule) {
+      executor.submit(new Runnable() {
+        @Override public void run() {
+          synchronized (queue) {
+            sendScheduled = false;
+          }
+          send(false);
+        }
+      });
+    }
+  }
+
+  /**
+   * Send every queued hit, even while backing off. The returned future completes once they were
+   * sent or failed.
+   */
+  Future<?> dispatch() {
+    return executor.submit(new Runnable() {
+      @Override public void run() {
+        send(true);
+      }
+    });
+  }
+
+  /** Send every queued hit before returning, waiting at most {@code timeoutMillis}. */
+  void dispatchNow(long timeoutMillis) {
+    try {
+      dispatch().get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      logger.error(e, "Could not send queued hits.");
+    }
+  }
+
+  /** Number of {@code /batch} requests made, successful or not. */
+  long batches() {
+    return batches.get();
+  }
+
+  /** Number of {@code /batch} requests that failed, whose hits were kept for the next dispatch. */
+  long failedBatches() {
+    return failedBatches.get();
+  }
+
+  /** Number of hits dropped: too large, too old or pushed out of a full queue. */
+  long droppedHits() {
+    return droppedHits.get();
+  }
+
+  int queued() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  /** Runs on the executor. Sends full batches, and the last partial one if {@code all}. */
+  private void send(boolean all) {
+    String clientId = clientId();
+    if (clientId == null) {
+      // Hits stay queued for the next send to try again.
+      return;
+    }
+    while (true) {
+      List<Hit> batch = nextBatch(all);
+      if (batch == null) {
+        return;
+      }
+      if (!post(batch, clientId)) {
+        failedBatches.incrementAndGet();
+        requeue(batch);
+        backOff();
+        return;
+      }
+      synchronized (queue) {
+        consecutiveFailures = 0;
+      }
+    }
+  }
+
+  /** Runs on the executor. The client id, loading it on first use, or {@code null} if it can't. */
+  private String clientId() {
+    if (clientId == null) {
+      try {
+        clientId = clientIdLoader.call();
+      } catch (Exception e) {
+        logger.error(e, "Could not load the Measurement Protocol client id.");
+      }
+    }
+    return clientId;
+  }
+
+  /** Hold full batches back for 30 seconds after a failure, doubling up to 30 minutes. */
+  private void backOff() {
+    synchronized (queue) {
+      long delay = INITIAL_BACKOFF_NANOS << Math.min(consecutiveFailures, 6);
+      consecutiveFailures++;
+      backoffUntilNanos = System.nanoTime() + Math.min(delay, MAX_BACKOFF_NANOS);
+    }
+  }
+
+  private boolean backingOff() {
+    synchronized (queue) {
+      return consecutiveFailures > 0 && System.nanoTime() - backoffUntilNanos < 0;
+    }
+  }
+
+  private List<Hit> nextBatch(boolean all) {
+    long now = System.nanoTime();
+    synchronized (queue) {
+      if (queue.isEmpty() || (!all && queue.size() < MAX_HITS_PER_BATCH)) {
+        return null;
+      }
+      List<Hit> batch = new ArrayList<>(Math.min(queue.size(), MAX_HITS_PER_BATCH));
+      int bytes = 0;
+      while (!queue.isEmpty() && batch.size() < MAX_HITS_PER_BATCH) {
+        Hit hit = queue.peekFirst();
+        if (now - hit.queuedNanos > MAX_QUEUE_NANOS) {
+          queue.removeFirst();
+          droppedHits.incrementAndGet();
+          continue;
+        }
+        int size = hit.payload.length() + HIT_SUFFIX_BYTES;
+        if (!batch.isEmpty() && bytes + size > MAX_BATCH_BYTES) {
+          break;
+        }
+        batch.add(queue.removeFirst());
+        bytes += size;
+      }
+      return batch.isEmpty() ? null : batch;
+    }
+  }
+
+  /** Put a batch that couldn't be sent back in front of the queue, as room allows. */
+  private void requeue(List<Hit> batch) {
+    synchronized (queue) {
+      for (int i = batch.size() - 1; i >= 0; i--) {
+        if (queue.size() == maxQueuedHits) {
+          droppedHits.addAndGet(i + 1);
+          return;
+        }
+        queue.addFirst(batch.get(i));
+      }
+    }
+  }
+
+  /** POST {@code batch}, returning whether it is done with: sent, or rejected as malformed. */
+  private boolean post(List<Hit> batch, String clientId) {
+    batches.incrementAndGet();
+    long now = System.nanoTime();
+    String cid = "&cid=" + MeasurementProtocolTracker.urlEncode(clientId);
+    StringBuilder body = new StringBuilder(batch.size() * 512);
+    for (Hit hit : batch) {
+      body.append(hit.payload)
+          .append(cid)
+          .append("&qt=")
+          .append(TimeUnit.NANOSECONDS.toMillis(now - hit.queuedNanos))
+          .append('\n');
+    }
+
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) endpoint.openConnection();
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+      connection.setRequestProperty("Content-Encoding", "gzip");
+      byte[] gzipped = gzip(body.toString().getBytes("UTF-8"));
+      connection.setFixedLengthStreamingMode(gzipped.length);
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(gzipped);
+      } finally {
+        out.close();
+      }
+
+      int code = connection.getResponseCode();
+      // Read the response to the end so the connection can be reused for the next batch.
+      drain(code >= 400 ? connection.getErrorStream() : connection.getInputStream());
+      if (code >= 500) {
+        logger.debug("Measurement Protocol batch failed with %s, retrying later.", code);
+        return false;
+      }
+      if (code >= 400) {
+        droppedHits.addAndGet(batch.size());
+        logger.debug("Measurement Protocol rejected a batch of %s hits with %s.", batch.size(),
+            code);
+      }
+      return true;
+    } catch (IOException e) {
+      logger.debug("Could not send a batch of %s hits, retrying later: %s", batch.size(), e);
+      if (connection != null) {
+        // The connection may be broken, don't reuse it.
+        connection.disconnect();
+      }
+      return false;
+    }
+  }
+
+  private static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    try {
+      gzip.write(bytes);
+    } finally {
+      gzip.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    if (in == null) {
+      return;
+    }
+    try {
+      byte[] buffer = new byte[1024];
+      while (in.read(buffer) != -1) {
+        // Discard.
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
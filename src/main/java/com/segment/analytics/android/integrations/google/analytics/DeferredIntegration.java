@@ -0,0 +1,281 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import android.app.Activity;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Integration;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static com.segment.analytics.internal.Utils.isNullOrEmpty;
+
+/**
+ * Creates the {@link GoogleAnalyticsIntegration} (the Google Analytics instance, its trackers and
+ * the exception reporter) on a background thread, so the factory returns right away instead of
+ * running all of that on the app's cold start path.
+ *
+ * Calls made before the integration is ready are buffered, up to {@code bufferSize}, and replayed
+ * in order once it is. Calls that don't fit are dropped. Identify, reset and completed orders (or
+ * any track call with an {@code orderId}) have a buffer bound of their own, {@code
+ * essentialBufferSize}, so a full buffer doesn't drop them: that would attribute hits to the wrong
+ * user or lose revenue.
+ */
+public final class DeferredIntegration
+    extends Integration<com.google.android.gms.analytics.Tracker> {
+  static final int DEFAULT_BUFFER_SIZE = 100;
+  static final int DEFAULT_ESSENTIAL_BUFFER_SIZE = 1000;
+  private static final String THREAD_NAME = "Segment-GoogleAnalytics-Init";
+
+  /** A call made before the integration was ready. */
+  private abstract static class PendingCall {
+    /** Whether the call counts against {@code essentialBufferSize} rather than the buffer size. */
+    final boolean essential;
+
+    PendingCall(boolean essential) {
+      this.essential = essential;
+    }
+
+    abstract void replay(GoogleAnalyticsIntegration integration);
+  }
+
+  private final int bufferSize;
+  private final int essentialBufferSize;
+  private final Logger logger;
+  private final Object lock = new Object();
+  /** Calls waiting for the integration, or {@code null} once it is ready. Guarded by lock. */
+  private List<PendingCall> buffer;
+  /** Essential calls in buffer. Guarded by lock. */
+  private int essentialBuffered;
+  /** Guarded by lock. */
+  private boolean failed;
+  /** Guarded by lock. */
+  private int dropped;
+  private volatile GoogleAnalyticsIntegration integration;
+
+  DeferredIntegration(Callable<GoogleAnalyticsIntegration> initializer, int bufferSize,
+      Logger logger) {
+    this(initializer, bufferSize, DEFAULT_ESSENTIAL_BUFFER_SIZE, logger);
+  }
+
+  DeferredIntegration(final Callable<GoogleAnalyticsIntegration> initializer, int bufferSize,
+      int essentialBufferSize, Logger logger) {
+    this.bufferSize = bufferSize;
+    this.essentialBufferSize = essentialBufferSize;
+    this.logger = logger;
+    this.buffer = new ArrayList<>(Math.min(bufferSize, 16));
+    Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        initialize(initializer);
+      }
+    }, THREAD_NAME);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void initialize(Callable<GoogleAnalyticsIntegration> initializer) {
+    GoogleAnalyticsIntegration created;
+    try {
+      created = initializer.call();
+    } catch (Exception e) {
+      logger.error(e, "Could not initialize Google Analytics.");
+      synchronized (lock) {
+        failed = true;
+        buffer = null;
+      }
+      return;
+    }
+    // Replay outside the lock, so callers only wait for an add to the buffer. Calls made during a
+    // replay go to a new buffer, replayed next, until none are left and the integration takes
+    // over: calls keep their order throughout.
+    int replayed = 0;
+    while (true) {
+      List<PendingCall> pending;
+      synchronized (lock) {
+        pending = buffer;
+        if (pending.isEmpty()) {
+          buffer = null;
+          integration = created;
+          break;
+        }
+        buffer = new ArrayList<>(Math.min(bufferSize, 16));
+        essentialBuffered = 0;
+      }
+      for (PendingCall call : pending) {
+        try {
+          call.replay(created);
+        } catch (RuntimeException e) {
+          // Don't let one bad call keep the integration from ever becoming ready.
+          logger.error(e, "Could not replay a call to Google Analytics.");
+        }
+      }
+      replayed += pending.size();
+    }
+    logger.verbose("Initialized Google Analytics, replayed %s calls and dropped %s.", replayed,
+        droppedCount());
+  }
+
+  /**
+   * Buffers {@code call}, unless the integration became ready in the meantime: then returns it, and
+   * the caller makes the call directly. Callers check {@link #integration} first, so nothing is
+   * allocated once the integration is ready.
+   */
+  private GoogleAnalyticsIntegration buffer(PendingCall call) {
+    synchronized (lock) {
+      if (integration != null) {
+        return integration;
+      }
+      if (failed) {
+        return null;
+      }
+      boolean fits = call.essential ? essentialBuffered < essentialBufferSize
+          : buffer.size() - essentialBuffered < bufferSize;
+      if (fits) {
+        buffer.add(call);
+        if (call.essential) {
+          essentialBuffered++;
+        }
+      } else if (dropped++ == 0) {
+        logger.debug("Google Analytics is not ready yet and its buffer is full, dropping calls.");
+      }
+      return null;
+    }
+  }
+
+  boolean isReady() {
+    return integration != null;
+  }
+
+  /** Number of calls dropped because their buffer was full. */
+  int droppedCount() {
+    synchronized (lock) {
+      return dropped;
+    }
+  }
+
+  /**
+   * Returns the integration's {@link GoogleAnalyticsIntegration#metrics}, or empty metrics while
+   * it isn't ready.
+   */
+  public MetricsSnapshot metrics() {
+    GoogleAnalyticsIntegration ready = integration;
+    if (ready == null) {
+      return new IntegrationMetrics().snapshot(Collections.<String, Long>emptyMap(), 0, 0);
+    }
+    return ready.metrics();
+  }
+
+  @Override public void onActivityStarted(final Activity activity) {
+    GoogleAnalyticsIntegration ready = integration;
+    if (ready == null) {
+      ready = buffer(new PendingCall(false) {
+        @Override void replay(GoogleAnalyticsIntegration integration) {
+          integration.onActivityStarted(activity);
+        }
+      });
+    }
+    if (ready != null) {
+      ready.onActivityStarted(activity);
+    }
+  }
+
+  @Override public void onActivityStopped(final Activity activity) {
+    GoogleAnalyticsIntegration ready = integration;
+    if (ready == null) {
+      ready = buffer(new PendingCall(false) {
+        @Override void replay(GoogleAnalyticsIntegration integration) {
+          integration.onActivityStopped(activity);
+        }
+      });
+    }
+    if (ready != null) {
+      ready.onActivityStopped(activity);
+    }
+  }
+
+  @Override public void identify(final IdentifyPayload identify) {
+    GoogleAnalyticsIntegration ready = integration;
+    if (ready == null) {
+      ready = buffer(new PendingCall(true) {
+        @Override void replay(GoogleAnalyticsIntegration integration) {
+          integration.identify(identify);
+        }
+      });
+    }
+    if (ready != null) {
+      ready.identify(identify);
+    }
+  }
+
+  @Override public void track(final TrackPayload track) {
+    GoogleAnalyticsIntegration ready = integration;
+    if (ready == null) {
+      ready = buffer(new PendingCall(isOrder(track)) {
+        @Override void replay(GoogleAnalyticsIntegration integration) {
+          integration.track(track);
+        }
+      });
+    }
+    if (ready != null) {
+      ready.track(track);
+    }
+  }
+
+  // Configured ecommerce event names aren't known before the integration is ready.
+  private static boolean isOrder(TrackPayload track) {
+    String event = track.event();
+    return (event != null && EventClassifier.COMPLETED_ORDER_PATTERN.matcher(event).matches())
+        || !isNullOrEmpty(track.properties().orderId());
+  }
+
+  @Override public void screen(final ScreenPayload screen) {
+    GoogleAnalyticsIntegration ready = integration;
+    if (ready == null) {
+      ready = buffer(new PendingCall(false) {
+        @Override void replay(GoogleAnalyticsIntegration integration) {
+          integration.screen(screen);
+        }
+      });
+    }
+    if (ready != null) {
+      ready.screen(screen);
+    }
+  }
+
+  @Override public void flush() {
+    GoogleAnalyticsIntegration ready = integration;
+    if (ready == null) {
+      ready = buffer(new PendingCall(false) {
+        @Override void replay(GoogleAnalyticsIntegration integration) {
+          integration.flush();
+        }
+      });
+    }
+    if (ready != null) {
+      ready.flush();
+    }
+  }
+
+  @Override public void reset() {
+    GoogleAnalyticsIntegration ready = integration;
+    if (ready == null) {
+      ready = buffer(new PendingCall(true) {
+        @Override void replay(GoogleAnalyticsIntegration integration) {
+          integration.reset();
+        }
+      });
+    }
+    if (ready != null) {
+      ready.reset();
+    }
+  }
+
+  /** Returns the tracker, or {@code null} if it hasn't been created yet. */
+  @Override public com.google.android.gms.analytics.Tracker getUnderlyingInstance() {
+    GoogleAnalyticsIntegration ready = integration;
+    return ready == null ? null : ready.getUnderlyingInstance();
+  }
+}
@@ -0,0 +1,85 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces flush requests. The first request schedules a flush {@code windowMillis} later and
+ * every request made before it runs is folded into it, so frequent Segment flushes wake the radio
+ * once per window instead of once each. {@link #flushSoon} and {@link #flushNow} skip the wait for
+ * critical moments.
+ */
+class FlushScheduler {
+  private static final String THREAD_NAME = "Segment-GoogleAnalytics-Flush";
+
+  private final Runnable flush;
+  private final long windowMillis;
+  private final ScheduledExecutorService executor;
+  private final AtomicLong coalesced = new AtomicLong();
+  private final Runnable scheduledFlush = new Runnable() {
+    @Override public void run() {
+      synchronized (FlushScheduler.this) {
+        pending = null;
+      }
+      flush.run();
+    }
+  };
+  /** The scheduled flush, or {@code null} if none. Guarded by {@code this}. */
+  private ScheduledFuture<?> pending;
+
+  FlushScheduler(Runnable flush, long windowMillis) {
+    this.flush = flush;
+    this.windowMillis = windowMillis;
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /** Flush at the end of the current window, scheduling one if none is pending. */
+  void request() {
+    synchronized (this) {
+      if (pending != null) {
+        coalesced.incrementAndGet();
+        return;
+      }
+      pending = executor.schedule(scheduledFlush, windowMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Flush right away on the scheduler's thread, replacing any pending flush, so the caller doesn't
+   * wait for it. Requests made before it runs are folded into it.
+   */
+  void flushSoon() {
+    synchronized (this) {
+      if (pending != null) {
+        pending.cancel(false);
+      }
+      pending = executor.schedule(scheduledFlush, 0, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Flush on the calling thread right away, replacing any pending flush. */
+  void flushNow() {
+    synchronized (this) {
+      if (pending != null) {
+        pending.cancel(false);
+        pending = null;
+      }
+    }
+    flush.run();
+  }
+
+  /** Number of requests folded into an already scheduled flush. */
+  long coalescedCount() {
+    return coalesced.get();
+  }
+}
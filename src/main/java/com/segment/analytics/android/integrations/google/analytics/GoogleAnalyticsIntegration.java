@@ -5,35 +5,40 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
 
-import android.net.Uri;
 import com.google.android.gms.analytics.HitBuilders;
-import com.google.android.gms.analytics.ecommerce.ProductAction;
 import com.segment.analytics.Analytics;
 import com.segment.analytics.Properties;
-import com.segment.analytics.AnalyticsContext;
-import com.segment.analytics.Properties.Product;
+import com.segment.analytics.Traits;
 import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.google.analytics.EventClassifier.EventType;
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.CallType;
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.HitType;
 import com.segment.analytics.integrations.BasePayload;
 import com.segment.analytics.integrations.IdentifyPayload;
 import com.segment.analytics.integrations.Integration;
 import com.segment.analytics.integrations.Logger;
 import com.segment.analytics.integrations.ScreenPayload;
 import com.segment.analytics.integrations.TrackPayload;
-import com.segment.analytics.internal.Utils;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.segment.analytics.internal.Utils.hasPermission;
 import static com.segment.analytics.internal.Utils.isNullOrEmpty;
-import static java.util.regex.Pattern.CASE_INSENSITIVE;
 
 /**
  * Google Analytics is the most popular analytics tool for the web because it's free and sports a
  * wide range of features. It's especially good at measuring traffic sources and ad campaigns.
  *
+ * Payloads are mapped to hits by the platform-free {@link HitMapper}; this class decides which
+ * calls are mapped (sampling, rate limits, repeated screens), where (the caller's thread or the
+ * dispatcher's) and sends the hits to each tracker.
+ *
  * @see <a href="http://www.google.com/analytics/">Google Analytics</a>
  * @see <a href="https://segment.com/docs/integrations/google-analytics/">Google Analytics
  * Integration</a>
@@ -43,8 +48,8 @@ import static java.util.regex.Pattern.CASE_INSENSITIVE;
 public class GoogleAnalyticsIntegration
     extends Integration<com.google.android.gms.analytics.Tracker> {
   public static final Factory FACTORY = new Factory() {
-    @Override public Integration<?> create(ValueMap settings, Analytics analytics) {
-      Logger logger = analytics.logger(GOOGLE_ANALYTICS_KEY);
+    @Override public Integration<?> create(final ValueMap settings, Analytics analytics) {
+      final Logger logger = analytics.logger(GOOGLE_ANALYTICS_KEY);
       if (!hasPermission(analytics.getApplication(), Manifest.permission.ACCESS_NETWORK_STATE)) {
         logger.debug("ACCESS_NETWORK_STATE is required for Google Analytics.");
         return null;
@@ -55,7 +60,27 @@ public class GoogleAnalyticsIntegration
         return null;
       }
 
-      Context context = analytics.getApplication();
+      final Context context = analytics.getApplication();
+      if (settings.getBoolean("deferredInit", false)) {
+        // Get the GA instance and trackers off the caller's (usually the main) thread.
+        int bufferSize =
+            settings.getInt("deferredInitBufferSize", DeferredIntegration.DEFAULT_BUFFER_SIZE);
+        return new DeferredIntegration(new Callable<GoogleAnalyticsIntegration>() {
+          @Override public GoogleAnalyticsIntegration call() {
+            return create(context, settings, logger);
+          }
+        }, bufferSize, logger);
+      }
+      return create(context, settings, logger);
+    }
+
+    private GoogleAnalyticsIntegration create(Context context, ValueMap settings, Logger logger) {
+      if (settings.getBoolean("measurementProtocol", false)) {
+        // Send hits ourselves, in gzipped batches, instead of through Play Services.
+        return new GoogleAnalyticsIntegration(context,
+            MeasurementProtocolGoogleAnalytics.create(context, logger), settings, logger);
+      }
+
       // We already check for permissions before initializing the GA instance
       @SuppressLint("MissingPermission")
       com.google.android.gms.analytics.GoogleAnalytics ga =
@@ -69,191 +94,456 @@ public class GoogleAnalyticsIntegration
       return GOOGLE_ANALYTICS_KEY;
     }
   };
-  private static final ValueMap EMPTY = new ValueMap(Collections.<String, Object>emptyMap());
-  private static final String DEFAULT_CATEGORY = "All";
   private static final String ENHANCED_ECOMMERCE = "EnhancedEcommerce";
-  static final Pattern COMPLETED_ORDER_PATTERN =
-      Pattern.compile("completed *order|"
-              + "order *completed", CASE_INSENSITIVE);
-  static final Pattern PRODUCT_EVENT_NAME_PATTERN =
-      Pattern.compile("(((viewed)|(added)|(removed)) *product *.*)|"
-              + "(product *.* ((viewed)|(added)|(removed)))", CASE_INSENSITIVE);
-  static final Pattern PRODUCT_ADDED =
-      Pattern.compile("((added) *product *.*|product *.* (added))", CASE_INSENSITIVE);
-  static final Pattern PRODUCT_REMOVED =
-      Pattern.compile("((removed) *product *.*|product(removed))", CASE_INSENSITIVE);
   private static final String GOOGLE_ANALYTICS_KEY = "Google Analytics";
-  private static final String DIMENSION_PREFIX = "dimension";
-  private static final String DIMENSION_PREFIX_KEY = "&cd";
-  private static final String METRIC_PREFIX = "metric";
-  private static final String METRIC_PREFIX_KEY = "&cm";
-  private static final String USER_ID_KEY = "&uid";
-  private static final String QUANTITY_KEY = "quantity";
-  private static final String LABEL_KEY = "label";
 
   final Tracker tracker;
+  /** Properties that receive a copy of every hit sent to {@link #tracker}. */
+  final List<AdditionalTracker> additionalTrackers;
   final GoogleAnalytics googleAnalytics;
   final Logger logger;
-  // Mutable for testing.
-  boolean sendUserId;
-  ValueMap customDimensions;
-  ValueMap customMetrics;
+  /** Whether verbose logging is on, so hot paths can skip building log arguments entirely. */
+  final boolean verbose;
+  /** The user scoped parameters identify last resolved, merged into every hit. */
+  final AtomicReference<UserScope> userScope = new AtomicReference<>(UserScope.EMPTY);
+  final IntegrationMetrics metrics = new IntegrationMetrics();
+  /** Builds the hits of each call and hands them back to {@link #send}. */
+  final HitMapper mapper;
+  /** Runs mapping and tracker calls off the caller's thread, or {@code null} if disabled. */
+  final HitDispatcher dispatcher;
+  /** Drops track and screen calls of users outside the sample, or {@code null} if disabled. */
+  final Sampler sampler;
+  /** Whether completed and refunded orders of users outside the sample are dropped too. */
+  final boolean sampleTransactions;
+  /** Drops track calls of events fired too often, or {@code null} if disabled. */
+  final RateLimiter rateLimiter;
+  /** Drops repeated screen views, or {@code null} if disabled. */
+  final ScreenDeduplicator screenDeduplicator;
+  /** Coalesces flushes into one dispatch per window, or {@code null} to flush each time. */
+  final FlushScheduler flushScheduler;
 
   GoogleAnalyticsIntegration(Context context, GoogleAnalytics googleAnalytics, ValueMap settings,
       Logger logger) {
     this.googleAnalytics = googleAnalytics;
     this.logger = logger;
+    this.verbose = logger.logLevel == Analytics.LogLevel.VERBOSE;
 
     String mobileTrackingId = settings.getString("mobileTrackingId");
     tracker = googleAnalytics.newTracker(mobileTrackingId);
-    logger.verbose("GoogleAnalytics.getInstance(context).newTracker(%s);", mobileTrackingId);
+    if (verbose) {
+      logger.verbose("GoogleAnalytics.getInstance(context).newTracker(%s);", mobileTrackingId);
+    }
 
     boolean anonymizeIp = settings.getBoolean("anonymizeIp", false);
     tracker.setAnonymizeIp(anonymizeIp);
-    logger.verbose("tracker.setAnonymizeIp(%s);", anonymizeIp);
+    if (verbose) {
+      logger.verbose("tracker.setAnonymizeIp(%s);", anonymizeIp);
+    }
+
+    additionalTrackers = additionalTrackers(settings, anonymizeIp);
 
     boolean reportUncaughtExceptions = settings.getBoolean("reportUncaughtExceptions", false);
     if (reportUncaughtExceptions) {
       tracker.setUncaughtExceptionReporter(context);
-      logger.verbose("Thread.setDefaultUncaughtExceptionHandler(new ExceptionReporter(...));");
+      if (verbose) {
+        logger.verbose("Thread.setDefaultUncaughtExceptionHandler(new ExceptionReporter(...));");
+      }
     }
 
-    sendUserId = settings.getBoolean("sendUserId", false);
-    customDimensions = settings.getValueMap("dimensions");
-    if (isNullOrEmpty(customDimensions)) customDimensions = EMPTY;
-    customMetrics = settings.getValueMap("metrics");
-    if (isNullOrEmpty(customMetrics)) customMetrics = EMPTY;
+    mapper = new HitMapper(settings, new HitSink() {
+      @Override public void send(HitType type, Map<String, String> hit,
+          Map<String, Object> properties, List<? extends Map<String, Object>> products) {
+        GoogleAnalyticsIntegration.this.send(type, hit, properties, products);
+      }
+
+      @Override public void setScreenName(String screenName) {
+        GoogleAnalyticsIntegration.this.setScreenName(screenName);
+      }
+
+      @Override public boolean needsProducts() {
+        return remapsHits();
+      }
+    }, metrics, mappingLogger(logger));
+
+    double sampleRate = settings.getDouble("sampleRate", 100);
+    if (sampleRate < 100) {
+      sampler = new Sampler(sampleRate);
+      if (verbose) {
+        logger.verbose("Sampling %s%% of users.", sampleRate);
+      }
+    } else {
+      sampler = null;
+    }
+    sampleTransactions = settings.getBoolean("sampleTransactions", true);
+    rateLimiter = RateLimiter.fromSettings(settings.getValueMap("rateLimit"),
+        settings.getValueMap("eventRateLimits"), logger);
+
+    long screenDedupWindowMillis = settings.getLong("screenDedupWindowMillis", 0);
+    screenDeduplicator = screenDedupWindowMillis > 0
+        ? new ScreenDeduplicator(TimeUnit.MILLISECONDS.toNanos(screenDedupWindowMillis)) : null;
+
+    long flushWindowMillis = settings.getLong("flushCoalesceWindowMillis", 0);
+    if (flushWindowMillis > 0) {
+      flushScheduler = new FlushScheduler(new Runnable() {
+        @Override public void run() {
+          flushNow();
+        }
+      }, flushWindowMillis);
+      if (verbose) {
+        logger.verbose("Coalescing flushes within %sms.", flushWindowMillis);
+      }
+    } else {
+      flushScheduler = null;
+    }
+
+    if (settings.getBoolean("asyncDispatch", false)) {
+      int queueSize = settings.getInt("asyncDispatchQueueSize", HitDispatcher.DEFAULT_QUEUE_SIZE);
+      HitDispatcher.OverflowPolicy overflowPolicy = HitDispatcher.OverflowPolicy.fromSetting(
+          settings.getString("asyncDispatchOverflowPolicy"));
+      dispatcher = new HitDispatcher(queueSize, overflowPolicy, logger);
+      if (verbose) {
+        logger.verbose("Dispatching hits asynchronously (queue size %s, overflow policy %s).",
+            queueSize, overflowPolicy);
+      }
+    } else {
+      dispatcher = null;
+    }
+  }
+
+  private List<AdditionalTracker> additionalTrackers(ValueMap settings, boolean anonymizeIp) {
+    List<ValueMap> configs = settings.getList("additionalTrackers", ValueMap.class);
+    if (isNullOrEmpty(configs)) {
+      return Collections.emptyList();
+    }
+    List<AdditionalTracker> trackers = new ArrayList<>(configs.size());
+    for (ValueMap config : configs) {
+      String trackingId = config.getString("mobileTrackingId");
+      if (isNullOrEmpty(trackingId)) {
+        logger.debug("Ignoring additional tracker without a mobileTrackingId.");
+        continue;
+      }
+      Tracker additional = googleAnalytics.newTracker(trackingId);
+      additional.setAnonymizeIp(anonymizeIp);
+      if (verbose) {
+        logger.verbose("GoogleAnalytics.getInstance(context).newTracker(%s);", trackingId);
+      }
+
+      ValueMap dimensions = config.getValueMap("dimensions");
+      ValueMap metrics = config.getValueMap("metrics");
+      if (dimensions == null && metrics == null) {
+        trackers.add(new AdditionalTracker(trackingId, additional, null, null));
+      } else {
+        trackers.add(new AdditionalTracker(trackingId, additional,
+            CustomMapping.dimensions(dimensions, mappingLogger(logger)),
+            CustomMapping.metrics(metrics, mappingLogger(logger))));
+      }
+    }
+    return Collections.unmodifiableList(trackers);
+  }
+
+  static MappingLogger mappingLogger(final Logger logger) {
+    return new MappingLogger() {
+      @Override public void debug(String format, Object... extra) {
+        logger.debug(format, extra);
+      }
+    };
+  }
+
+  /** Whether any additional tracker maps custom dimensions and metrics differently. */
+  private boolean remapsHits() {
+    for (AdditionalTracker additional : additionalTrackers) {
+      if (!additional.sharesMapping()) {
+        return true;
+      }
+    }
+    return false;
   }
 
   @Override public void onActivityStarted(Activity activity) {
     super.onActivityStarted(activity);
     googleAnalytics.reportActivityStart(activity);
-    logger.verbose("GoogleAnalytics.getInstance(context).reportActivityStart(activity);");
+    if (verbose) {
+      logger.verbose("GoogleAnalytics.getInstance(context).reportActivityStart(activity);");
+    }
   }
 
   @Override public void onActivityStopped(Activity activity) {
     super.onActivityStopped(activity);
     googleAnalytics.reportActivityStop(activity);
-    logger.verbose("GoogleAnalytics.getInstance(context).reportActivityStop(activity);");
+    if (verbose) {
+      logger.verbose("GoogleAnalytics.getInstance(context).reportActivityStop(activity);");
+    }
+    if (flushScheduler != null) {
+      // The app may be about to go away, don't wait for the scheduled flush. Don't flush on the
+      // main thread either: with async dispatch it waits for every queued hit to be sent.
+      flushScheduler.flushSoon();
+    }
   }
 
-  @Override public void screen(ScreenPayload screen) {
-    Properties properties = screen.properties();
-    String screenName = screen.event();
+  @Override public void screen(final ScreenPayload screen) {
+    if (!isSampled(screen)) {
+      metrics.recordSampledOut();
+      return;
+    }
+    if (screenDeduplicator != null && screenDeduplicator.isDuplicate(
+        ScreenDeduplicator.key(screen.event(), screen.category(), screen.properties(),
+            mapper.customDimensions, mapper.customMetrics), System.nanoTime())) {
+      metrics.recordSuppressedScreen();
+      if (verbose) {
+        logger.verbose("Dropping repeated screen %s.", screen.event());
+      }
+      return;
+    }
+    if (dispatcher != null) {
+      dispatcher.dispatch(new Runnable() {
+        @Override public void run() {
+          mapScreen(screen);
+        }
+      });
+      return;
+    }
+    mapScreen(screen);
+  }
 
-    sendProductEvent(screenName, screen.category(), properties);
+  void mapScreen(ScreenPayload screen) {
+    long start = System.nanoTime();
+    mapper.mapScreen(screen.event(), screen.category(), screen.properties(),
+        screen.context().campaign());
+    metrics.recordMapping(CallType.SCREEN, System.nanoTime() - start);
+  }
 
+  private void setScreenName(String screenName) {
     tracker.setScreenName(screenName);
-    logger.verbose("tracker.setScreenName(%s);", screenName);
-
-    ScreenViewHitBuilder hitBuilder = new ScreenViewHitBuilder();
-    attachCustomDimensionsAndMetrics(hitBuilder, properties);
-    attachCampaignData(hitBuilder, screen);
+    if (verbose) {
+      logger.verbose("tracker.setScreenName(%s);", screenName);
+    }
+    for (AdditionalTracker additional : additionalTrackers) {
+      additional.tracker.setScreenName(screenName);
+      if (verbose) {
+        logger.verbose("tracker(%s).setScreenName(%s);", additional.trackingId, screenName);
+      }
+    }
+  }
 
-    Map<String, String> hit = hitBuilder.build();
-    tracker.send(hit);
-    logger.verbose("tracker.send(%s);", hit);
+  @Override public void identify(final IdentifyPayload identify) {
+    if (dispatcher != null) {
+      dispatcher.dispatch(new Runnable() {
+        @Override public void run() {
+          mapIdentify(identify);
+        }
+      });
+      return;
+    }
+    mapIdentify(identify);
   }
 
-  @Override public void identify(IdentifyPayload identify) {
-    if (sendUserId) {
-      String userId = identify.userId();
-      tracker.set(USER_ID_KEY, userId);
-      logger.verbose("tracker.set(%s, %s);", USER_ID_KEY, userId);
-    }
-
-    // Set traits, custom dimensions, and custom metrics on the shared tracker.
-    for (Map.Entry<String, Object> entry : identify.traits().entrySet()) {
-      String trait = entry.getKey();
-      if (customDimensions.containsKey(trait)) {
-        String dimension =
-            customDimensions.getString(trait).replace(DIMENSION_PREFIX, DIMENSION_PREFIX_KEY);
-        String value = String.valueOf(entry.getValue());
-        tracker.set(dimension, value);
-        logger.verbose("tracker.set(%s, %s);", dimension, value);
-      }
-      if (customMetrics.containsKey(trait)) {
-        String metric = customMetrics.getString(trait).replace(METRIC_PREFIX, METRIC_PREFIX_KEY);
-        String value = String.valueOf(entry.getValue());
-        tracker.set(metric, value);
-        logger.verbose("tracker.set(%s, %s);", metric, value);
+  void mapIdentify(IdentifyPayload identify) {
+    long start = System.nanoTime();
+    Traits traits = identify.traits();
+    String userId = identify.userId();
+    updateUserScope(userScope, null,
+        mapper.userParameters(userId, traits, mapper.customDimensions, mapper.customMetrics));
+    for (AdditionalTracker additional : additionalTrackers) {
+      // Properties sharing the primary mapping are sent the primary hit, user scope included.
+      if (!additional.sharesMapping()) {
+        updateUserScope(additional.userScope, additional.trackingId, mapper.userParameters(userId,
+            traits, additional.customDimensions, additional.customMetrics));
       }
     }
+    metrics.recordMapping(CallType.IDENTIFY, System.nanoTime() - start);
   }
 
-  @Override public void track(TrackPayload track) {
-    Properties properties = track.properties();
-    String event = track.event();
-    String category = properties.category();
-
-    sendProductEvent(event, category, properties);
+  /**
+   * Swap in a copy of {@code scope} with {@code parameters} applied. Hits being sent concurrently
+   * keep the scope they read, and a concurrent identify is retried on top of this one.
+   */
+  private void updateUserScope(AtomicReference<UserScope> scope, String trackingId,
+      Map<String, String> parameters) {
+    UserScope current;
+    UserScope updated;
+    do {
+      current = scope.get();
+      updated = current.with(parameters);
+    } while (updated != current && !scope.compareAndSet(current, updated));
+    int changes = current.changes(parameters);
+    metrics.recordSet(changes);
+    metrics.recordSkippedSet(parameters.size() - changes);
+    if (verbose && updated != current) {
+      if (trackingId == null) {
+        logger.verbose("userScope = %s;", updated);
+      } else {
+        logger.verbose("userScope(%s) = %s;", trackingId, updated);
+      }
+    }
+  }
 
-    if (COMPLETED_ORDER_PATTERN.matcher(event).matches()) {
+  @Override public void track(final TrackPayload track) {
+    // Classification is memoized, so this is a lookup.
+    boolean transaction = mapper.eventClassifier.classify(track.event()).isTransaction();
+    if (!isSampled(track) && (sampleTransactions || !transaction)) {
+      metrics.recordSampledOut();
+      return;
+    }
+    // Never drop revenue to the rate limiter.
+    if (rateLimiter != null && !transaction && !rateLimiter.tryAcquire(track.event())) {
+      if (verbose) {
+        logger.verbose("Rate limit exceeded, dropping %s.", track.event());
+      }
+      return;
+    }
+    if (dispatcher != null) {
+      dispatcher.dispatch(new Runnable() {
+        @Override public void run() {
+          mapTrack(track);
+        }
+      });
+      return;
+    }
+    mapTrack(track);
+  }
 
-      EventHitBuilder eventHitBuilder = new EventHitBuilder();
+  /**
+   * Whether the user who made {@code payload} is in the sample. Buckets by anonymous id, falling
+   * back to the user id. The anonymous id is per install and Segment regenerates it on {@code
+   * reset()}, so the decision holds across logging in, but not across a reset or devices.
+   */
+  private boolean isSampled(BasePayload payload) {
+    if (sampler == null) {
+      return true;
+    }
+    String id = payload.anonymousId();
+    return sampler.isSampled(isNullOrEmpty(id) ? payload.userId() : id);
+  }
 
-      List<Product> products = properties.products();
-      if (!isNullOrEmpty(products)) {
-        for (int i = 0; i < products.size(); i++) {
-          Product product = products.get(i);
+  void mapTrack(TrackPayload track) {
+    long start = System.nanoTime();
+    EventType eventType =
+        mapper.mapTrack(track.event(), track.properties(), track.context().campaign());
+    metrics.recordMapping(CallType.TRACK, System.nanoTime() - start);
 
-          com.google.android.gms.analytics.ecommerce.Product newProduct =
-            new com.google.android.gms.analytics.ecommerce.Product()
-                .setId(product.id())
-                .setName(product.name())
-                .setPrice(product.price())
-                .setQuantity(product.getInt(QUANTITY_KEY, 0));
+    if (eventType == EventType.ORDER_COMPLETED && flushScheduler != null) {
+      // Don't risk losing revenue data to a flush that never comes.
+      flushScheduler.flushNow();
+    }
+  }
 
-          eventHitBuilder.addProduct(newProduct);
+  @Override public void reset() {
+    super.reset();
+    // Hits of the next user mustn't carry the user id and traits of the previous one. Clear in
+    // line with queued calls, so an identify still waiting to run can't bring them back.
+    if (dispatcher != null) {
+      dispatcher.dispatchEssential(new Runnable() {
+        @Override public void run() {
+          clearUserScope();
         }
-      }
-
-      ProductAction productAction = new ProductAction(ProductAction.ACTION_PURCHASE)
-          .setTransactionId(properties.orderId())
-          .setTransactionRevenue(properties.total())
-          .setTransactionTax(properties.tax())
-          .setTransactionShipping(properties.shipping());
+      });
+      return;
+    }
+    clearUserScope();
+  }
 
-      eventHitBuilder.setProductAction(productAction);
+  /** Forget what identify resolved for each tracker. */
+  void clearUserScope() {
+    userScope.set(UserScope.EMPTY);
+    for (AdditionalTracker additional : additionalTrackers) {
+      additional.userScope.set(UserScope.EMPTY);
+    }
+    if (verbose) {
+      logger.verbose("Cleared user scope.");
+    }
+  }
 
-      eventHitBuilder = addEcommerceEventCategory(eventHitBuilder, properties);
+  @Override public void flush() {
+    if (flushScheduler != null) {
+      flushScheduler.request();
+      return;
+    }
+    flushNow();
+  }
 
-      attachCustomDimensionsAndMetrics(eventHitBuilder, properties);
-      Map<String, String> transaction = eventHitBuilder.build();
-      tracker.send(transaction);
-      logger.verbose("tracker.send(%s);", transaction);
+  /** Make sure queued hits have reached the tracker, then dispatch them right away. */
+  void flushNow() {
+    long start = System.nanoTime();
+    if (dispatcher != null) {
+      // Make sure every hit queued so far has reached the tracker before dispatching.
+      dispatcher.drain();
+    }
+    googleAnalytics.dispatchLocalHits();
+    if (verbose) {
+      logger.verbose("GoogleAnalytics.getInstance(context).dispatchLocalHits();");
     }
+    metrics.recordFlush(System.nanoTime() - start);
+  }
 
-    String label = properties.getString(LABEL_KEY);
-    EventHitBuilder eventHitBuilder = new EventHitBuilder();
-    eventHitBuilder.setAction(event)
-        .setCategory(isNullOrEmpty(category) ? DEFAULT_CATEGORY : category)
-        .setLabel(label)
-        .setValue((int) properties.value());
+  /**
+   * Returns a snapshot of the hits sent, user scope updates from identify, mapping latency,
+   * flushes and calls dropped recorded so far.
+   */
+  public MetricsSnapshot metrics() {
+    return metrics.snapshot(rateLimiter == null
+            ? Collections.<String, Long>emptyMap() : rateLimiter.droppedCounts(),
+        flushScheduler == null ? 0 : flushScheduler.coalescedCount(),
+        dispatcher == null ? 0 : dispatcher.droppedCount());
+  }
 
-    attachCustomDimensionsAndMetrics(eventHitBuilder, properties);
-    attachCampaignData(eventHitBuilder, track);
+  void send(HitType type, Map<String, String> hit) {
+    send(type, hit, null, null);
+  }
 
-    if (event.equals("Deep Link Opened")) {
-      eventHitBuilder.setCampaignParamsFromUrl(track.properties().getString("url"));
+  /**
+   * Send {@code hit} to the primary tracker and every additional tracker, only formatting it for
+   * the log when verbose logging is enabled. {@code properties} and {@code products} are what the
+   * hit's custom dimensions and metrics were mapped from, for trackers with their own mapping.
+   *
+   * The current user scope is merged into {@code hit}, which must not be shared.
+   */
+  void send(HitType type, Map<String, String> hit, Map<String, Object> properties,
+      List<? extends Map<String, Object>> products) {
+    userScope.get().applyTo(hit);
+    tracker.send(hit);
+    metrics.recordHit(type, hit);
+    if (verbose) {
+      logger.verbose("tracker.send(%s);", hit);
     }
 
-    Map<String, String> eventHit = eventHitBuilder.build();
-    tracker.send(eventHit);
-    logger.verbose("tracker.send(%s);", eventHit);
+    for (AdditionalTracker additional : additionalTrackers) {
+      Map<String, String> additionalHit = additional.remap(hit, properties, products);
+      if (!additional.sharesMapping()) {
+        additional.userScope.get().applyTo(additionalHit);
+      }
+      additional.tracker.send(additionalHit);
+      metrics.recordAdditionalTrackerHit();
+      if (verbose) {
+        logger.verbose("tracker(%s).send(%s);", additional.trackingId, additionalHit);
+      }
+    }
+  }
+
+  /**
+   * Returns the Play Services tracker of the primary property, or {@code null} with the {@code
+   * measurementProtocol} setting, where hits don't go through Play Services.
+   */
+  @Override public com.google.android.gms.analytics.Tracker getUnderlyingInstance() {
+    return tracker.delegate();
   }
 
   /**
    * HitBuilder declares setCustomDimension and setCustomMetric, but it is a protected class, so
-   * attachCustomDimensionsAndMetrics can't accept it as a parameter. Write our own wrapper that
-   * exposes the required methods.
+   * mapping can't accept it as {@link HitParameters}. Write our own wrapper that exposes the
+   * required methods.
+   *
+   * Hits are written by {@link HitWriter}; the builders below are kept as a compatibility path for
+   * code still building hits with Google Analytics' builders, and take the same mapped parameters
+   * ({@link ResolvedSlots}, {@link CampaignParams}).
    */
-  interface CustomHitBuilder {
-    CustomHitBuilder setCustomDimension(int index, String dimension);
+  interface CustomHitBuilder extends HitParameters {
+    @Override CustomHitBuilder setCustomDimension(int index, String dimension);
 
-    CustomHitBuilder setCustomMetric(int index, float metric);
+    @Override CustomHitBuilder setCustomMetric(int index, float metric);
 
-    CustomHitBuilder setCampaignParamsFromUrl(String url);
+    @Override CustomHitBuilder setCampaignParamsFromUrl(String url);
+
+    @Override CustomHitBuilder setParameter(String paramName, String paramValue);
   }
 
   static class EventHitBuilder extends HitBuilders.EventBuilder implements CustomHitBuilder {
@@ -271,6 +561,11 @@ public class GoogleAnalyticsIntegration
       super.setCampaignParamsFromUrl(url);
       return this;
     }
+
+    @Override public EventHitBuilder setParameter(String paramName, String paramValue) {
+      set(paramName, paramValue);
+      return this;
+    }
   }
 
   static class ScreenViewHitBuilder extends HitBuilders.ScreenViewBuilder
@@ -289,139 +584,13 @@ public class GoogleAnalyticsIntegration
       super.setCampaignParamsFromUrl(url);
       return this;
     }
-  }
-
-  /** Set custom dimensions and metrics on the hit. */
-  void attachCustomDimensionsAndMetrics(CustomHitBuilder hitBuilder, Properties properties) {
-    for (Map.Entry<String, Object> entry : properties.entrySet()) {
-      String property = entry.getKey();
-      if (customDimensions.containsKey(property)) {
-        int dimension =
-            extractNumber(customDimensions.getString(property), DIMENSION_PREFIX.length());
-        hitBuilder.setCustomDimension(dimension, String.valueOf(entry.getValue()));
-      }
-      if (customMetrics.containsKey(property)) {
-        int metric = extractNumber(customMetrics.getString(property), METRIC_PREFIX.length());
-        hitBuilder.setCustomMetric(metric, Utils.coerceToFloat(entry.getValue(), 0));
-      }
-    }
-  }
 
-  /**
-   * Set custom dimensions and metrics on the product.
-   *
-   * This implementation is the same as {@link #attachCustomDimensionsAndMetrics}.
-   *
-   * It is copied over as there is no common interface between {@link HitBuilders}
-   * and {@link com.google.android.gms.analytics.ecommerce.Product}.
-   */
-  void attachCustomDimensionsAndMetricsOnProduct(
-      com.google.android.gms.analytics.ecommerce.Product product, Properties properties) {
-    for (Map.Entry<String, Object> entry : properties.entrySet()) {
-      String property = entry.getKey();
-      if (customDimensions.containsKey(property)) {
-        int dimension =
-            extractNumber(customDimensions.getString(property), DIMENSION_PREFIX.length());
-        product.setCustomDimension(dimension, String.valueOf(entry.getValue()));
-      }
-      if (customMetrics.containsKey(property)) {
-        int metric = extractNumber(customMetrics.getString(property), METRIC_PREFIX.length());
-        product.setCustomMetric(metric, (int) Utils.coerceToFloat(entry.getValue(), 0));
-      }
-    }
-  }
-
-  /** Set campaign data when present. */
-  void attachCampaignData(CustomHitBuilder hitBuilder, BasePayload payload) {
-    AnalyticsContext.Campaign campaign = payload.context().campaign();
-    if (isNullOrEmpty(campaign)) {
-      return;
-    }
-
-    
-    String url = new Uri.Builder().appendQueryParameter("utm_content", campaign.content())
-        .appendQueryParameter("utm_source", campaign.source())
-        .appendQueryParameter("utm_medium", campaign.medium())
-        .appendQueryParameter("utm_campaign", campaign.name())
-        .build()
-        .toString();
-
-    hitBuilder.setCampaignParamsFromUrl(url);
-  }
-
-  // e.g. extractNumber("dimension3", 8) returns 3
-  // e.g. extractNumber("dimension9", 8) returns 9
-  private static int extractNumber(String text, int start) {
-    if (isNullOrEmpty(text)) {
-      return 0;
-    }
-    return Integer.parseInt(text.substring(start, text.length()));
-  }
-
-  @Override public void flush() {
-    googleAnalytics.dispatchLocalHits();
-    logger.verbose("GoogleAnalytics.getInstance(context).dispatchLocalHits();");
-  }
-
-  /** Send a product event. */
-  void sendProductEvent(String event, String category, Properties eventProperties) {
-    if (!PRODUCT_EVENT_NAME_PATTERN.matcher(event).matches()) {
-      return;
-    }
-
-    List<Product> products = eventProperties.products();
-    if (isNullOrEmpty(products)) {
-      products = Collections.singletonList(new Product(eventProperties.productId(), eventProperties.sku(), eventProperties.price()));
-    }
-
-    for (Product productProperties : products) {
-      Properties properties = new Properties();
-      properties.putAll(eventProperties);
-      properties.putAll(productProperties);
-
-      com.google.android.gms.analytics.ecommerce.Product product =
-        new com.google.android.gms.analytics.ecommerce.Product()
-            .setId(properties.productId() )
-            .setName(properties.name())
-            .setCategory(isNullOrEmpty(category) ? DEFAULT_CATEGORY : category)
-            .setPrice(properties.price())
-            .setQuantity(properties.getInt(QUANTITY_KEY, 0));
-
-      attachCustomDimensionsAndMetricsOnProduct(product, properties);
-
-      // initialize variables with default values
-      String action = ProductAction.ACTION_DETAIL;
-      String eventAction = "Product Viewed";
-
-      if (PRODUCT_ADDED.matcher(event).matches()) {
-        action = ProductAction.ACTION_ADD;
-        eventAction = "Product Added";
-      }
-
-      if (PRODUCT_REMOVED.matcher(event).matches()) {
-        action = ProductAction.ACTION_REMOVE;
-        eventAction = "Product Removed";
-      }
-
-      ProductAction productAction = new ProductAction(action);
-
-      EventHitBuilder eventHitBuilder = new EventHitBuilder();
-      eventHitBuilder.addProduct(product)
-          .setProductAction(productAction)
-          .setAction(eventAction);
-      eventHitBuilder = addEcommerceEventCategory(eventHitBuilder, properties);
-      attachCustomDimensionsAndMetrics(eventHitBuilder, properties);
-
-      Map<String, String> productEvent = eventHitBuilder.build();
-      tracker.send(productEvent);
-      logger.verbose("tracker.send(%s);", productEvent);
+    @Override public ScreenViewHitBuilder setParameter(String paramName, String paramValue) {
+      set(paramName, paramValue);
+      return this;
     }
   }
 
-  @Override public com.google.android.gms.analytics.Tracker getUnderlyingInstance() {
-    return tracker.delegate();
-  }
-
   public EventHitBuilder addEcommerceEventCategory(EventHitBuilder eventHitBuilder,
                                                    Properties properties) {
     if (!isNullOrEmpty(properties.category())) {
@@ -0,0 +1,218 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.integrations.Logger;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs hit mapping and {@link Tracker} calls on a single dedicated worker thread, so callers only
+ * pay for an enqueue. The worker is the only thread that touches the tracker while async dispatch
+ * is enabled.
+ */
+class HitDispatcher {
+  static final int DEFAULT_QUEUE_SIZE = 1000;
+  private static final String THREAD_NAME = "Segment-GoogleAnalytics-Dispatcher";
+  private static final long SHUTDOWN_CHECK_MILLIS = 100;
+
+  /** What to do with a task when the queue is full. */
+  enum OverflowPolicy {
+    /** Discard the task being dispatched. */
+    DROP_NEWEST,
+    /** Discard the oldest queued task to make room. */
+    DROP_OLDEST,
+    /** Block the caller until there is room. */
+    BLOCK;
+
+    // e.g. fromSetting("dropOldest") returns DROP_OLDEST
+    static OverflowPolicy fromSetting(String setting) {
+      if ("dropOldest".equals(setting)) {
+        return DROP_OLDEST;
+      }
+      if ("block".equals(setting)) {
+        return BLOCK;
+      }
+      return DROP_NEWEST;
+    }
+  }
+
+  private final BlockingQueue<Runnable> queue;
+  private final OverflowPolicy overflowPolicy;
+  private final Logger logger;
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread worker;
+  private volatile boolean shutdown;
+
+  HitDispatcher(int queueSize, OverflowPolicy overflowPolicy, Logger logger) {
+    this.queue = new LinkedBlockingQueue<>(queueSize);
+    this.overflowPolicy = overflowPolicy;
+    this.logger = logger;
+    this.worker = new Thread(new Runnable() {
+      @Override public void run() {
+        loop();
+      }
+    }, THREAD_NAME);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /** Queue {@code task} to run on the worker, applying the overflow policy if the queue is full. */
+  void dispatch(Runnable task) {
+    if (shutdown) {
+      recordDrop();
+      return;
+    }
+    if (queue.offer(task)) {
+      return;
+    }
+    switch (overflowPolicy) {
+      case DROP_OLDEST:
+        // Other callers may take the room we make, so keep evicting until the task fits. Each
+        // evicted hit is counted once by removeOldestHit.
+        while (!queue.offer(task)) {
+          if (!removeOldestHit()) {
+            recordDrop();
+            break;
+          }
+        }
+        break;
+      case BLOCK:
+        try {
+          queue.put(task);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          recordDrop();
+        }
+        break;
+      case DROP_NEWEST:
+      default:
+        recordDrop();
+        break;
+    }
+  }
+
+  /**
+   * Queue {@code task} to run on the worker regardless of the overflow policy, waiting for room if
+   * the queue is full. It is never evicted to make room for hits, so tasks that later hits depend
+   * on, like clearing the user scope, keep their place in line.
+   */
+  void dispatchEssential(Runnable task) {
+    if (shutdown) {
+      recordDrop();
+      return;
+    }
+    try {
+      queue.put(new Essential(task));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      recordDrop();
+    }
+  }
+
+  /**
+   * Block until every task dispatched before this call has run. The barrier is enqueued
+   * regardless of the overflow policy, so a drain never loses queued hits.
+   */
+  void drain() {
+    if (shutdown || Thread.currentThread() == worker) {
+      return;
+    }
+    Barrier barrier = new Barrier();
+    try {
+      queue.put(barrier);
+      // Stop waiting if the dispatcher is shut down before reaching the barrier.
+      while (!barrier.latch.await(SHUTDOWN_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (shutdown) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Remove the oldest queued hit, skipping drain barriers and essential tasks which must never be
+   * discarded.
+   */
+  private boolean removeOldestHit() {
+    Iterator<Runnable> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      Runnable task = iterator.next();
+      if (!(task instanceof Barrier) && !(task instanceof Essential)) {
+        iterator.remove();
+        recordDrop();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stop the worker. Tasks still queued are discarded, and tasks dispatched afterwards are dropped.
+   * Callers blocked in {@link #drain} are released.
+   */
+  void shutdown() {
+    shutdown = true;
+    worker.interrupt();
+  }
+
+  /** Count a discarded task, logging it so drops under an overflow policy don't go unnoticed. */
+  private void recordDrop() {
+    long count = dropped.incrementAndGet();
+    logger.debug("Dropped a queued call to Google Analytics, %s dropped so far.", count);
+  }
+
+  /** Number of tasks discarded because the queue was full or the dispatcher was shut down. */
+  long droppedCount() {
+    return dropped.get();
+  }
+
+  static class Barrier implements Runnable {
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    @Override public void run() {
+      latch.countDown();
+    }
+  }
+
+  static class Essential implements Runnable {
+    final Runnable task;
+
+    Essential(Runnable task) {
+      this.task = task;
+    }
+
+    @Override public void run() {
+      task.run();
+    }
+  }
+
+  private void loop() {
+    while (!shutdown) {
+      Runnable task;
+      try {
+        task = queue.take();
+      } catch (InterruptedException e) {
+        break;
+      }
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        logger.error(e, "Could not dispatch hit to Google Analytics.");
+      }
+    }
+    // Release anyone waiting on a barrier and discard the rest.
+    Runnable task;
+    while ((task = queue.poll()) != null) {
+      if (task instanceof Barrier) {
+        task.run();
+      } else {
+        recordDrop();
+      }
+    }
+  }
+}
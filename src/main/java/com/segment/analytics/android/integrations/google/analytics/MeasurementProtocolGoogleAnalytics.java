@@ -0,0 +1,122 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import com.segment.analytics.integrations.Logger;
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+/**
+ * A {@link GoogleAnalytics} whose trackers send hits with the Measurement Protocol through one
+ * shared {@link BatchTransport}, without Play Services.
+ */
+class MeasurementProtocolGoogleAnalytics implements GoogleAnalytics {
+  private static final String PREFERENCES_NAME = "analytics-android-google-analytics";
+  private static final String CLIENT_ID_KEY = "clientId";
+  /** Where Play Services keeps its client id, in the app's private files. */
+  private static final String PLAY_SERVICES_CLIENT_ID_FILE = "gaClientId";
+
+  final String appName;
+  final String appVersion;
+  final BatchTransport transport;
+
+  MeasurementProtocolGoogleAnalytics(String appName, String appVersion,
+      BatchTransport transport) {
+    this.appName = appName;
+    this.appVersion = appVersion;
+    this.transport = transport;
+  }
+
+  /**
+   * Sends to the Google Analytics {@code /batch} endpoint with the app's label and version name
+   * from the {@link PackageManager}. The client id is the one Play Services already generated, if
+   * any, so existing installs keep counting as the same users, or else a new one. Either way it is
+   * kept in shared preferences. As that reads from disk, the transport loads it on its own thread.
+   */
+  static MeasurementProtocolGoogleAnalytics create(final Context context, Logger logger) {
+    URL endpoint;
+    try {
+      endpoint = new URL(BatchTransport.DEFAULT_ENDPOINT);
+    } catch (MalformedURLException e) {
+      throw new AssertionError(e);
+    }
+    Callable<String> clientId = new Callable<String>() {
+      @Override public String call() {
+        return clientId(context);
+      }
+    };
+    BatchTransport transport = new BatchTransport(endpoint, clientId,
+        BatchTransport.DEFAULT_MAX_QUEUED_HITS, BatchTransport.DEFAULT_DISPATCH_PERIOD_MILLIS,
+        logger);
+    PackageManager packageManager = context.getPackageManager();
+    String appName = context.getPackageName();
+    String appVersion = null;
+    try {
+      appName = packageManager.getApplicationLabel(context.getApplicationInfo()).toString();
+      appVersion = packageManager.getPackageInfo(context.getPackageName(), 0).versionName;
+    } catch (PackageManager.NameNotFoundException e) {
+      logger.error(e, "Could not read the app version, sending hits without it.");
+    }
+    return new MeasurementProtocolGoogleAnalytics(appName, appVersion, transport);
+  }
+
+  private static String clientId(Context context) {
+    SharedPreferences preferences =
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    String clientId = preferences.getString(CLIENT_ID_KEY, null);
+    if (clientId == null) {
+      clientId = playServicesClientId(context);
+      if (clientId == null) {
+        clientId = UUID.randomUUID().toString();
+      }
+      preferences.edit().putString(CLIENT_ID_KEY, clientId).apply();
+    }
+    return clientId;
+  }
+
+  /** The client id Play Services stored, or {@code null} if it never ran in this app. */
+  private static String playServicesClientId(Context context) {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(
+          new InputStreamReader(context.openFileInput(PLAY_SERVICES_CLIENT_ID_FILE), "UTF-8"));
+      String clientId = reader.readLine();
+      return clientId == null || clientId.trim().isEmpty() ? null : clientId.trim();
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  @Override public Tracker newTracker(String trackingId) {
+    return new MeasurementProtocolTracker(trackingId, appName, appVersion, transport);
+  }
+
+  @Override public void reportActivityStop(Activity activity) {
+    // No automatic activity tracking; screens are only sent for screen calls.
+  }
+
+  @Override public void reportActivityStart(Activity activity) {
+    // No automatic activity tracking; screens are only sent for screen calls.
+  }
+
+  @Override public void dispatchLocalHits() {
+    transport.dispatch();
+  }
+}
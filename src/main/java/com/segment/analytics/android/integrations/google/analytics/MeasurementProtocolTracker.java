@@ -0,0 +1,139 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import android.content.Context;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Tracker} that speaks the Measurement Protocol itself instead of going through Play
+ * Services: each hit is encoded like {@code v=1&tid=...&an=...&av=...&t=event&...} and queued on
+ * a {@link BatchTransport}, which controls when it is sent and adds the client id.
+ *
+ * Like the Play Services tracker, parameters set on the tracker (the screen name, {@code &aip},
+ * ...) are sent with every hit, unless the hit sets them itself.
+ */
+class MeasurementProtocolTracker implements Tracker {
+  // Google Analytics truncates exception descriptions (&exd) to this length.
+  private static final int MAX_EXCEPTION_DESCRIPTION_LENGTH = 100;
+  private static final long EXCEPTION_DISPATCH_TIMEOUT_MILLIS = 2000;
+
+  final String trackingId;
+  /** The app's name and version ({@code &an} and {@code &av}), sent with every hit. */
+  final String appName;
+  final String appVersion;
+  private final BatchTransport transport;
+  /** Parameters sent with every hit, keyed like hit parameters ({@code &cd}). Guarded by this. */
+  private final Map<String, String> params = new HashMap<>();
+
+  MeasurementProtocolTracker(String trackingId, String appName, String appVersion,
+      BatchTransport transport) {
+    this.trackingId = trackingId;
+    this.appName = appName;
+    this.appVersion = appVersion;
+    this.transport = transport;
+  }
+
+  @Override public void send(Map<String, String> hit) {
+    Map<String, String> merged;
+    synchronized (this) {
+      merged = new LinkedHashMap<>((params.size() + hit.size()) * 4 / 3 + 1);
+      merged.putAll(params);
+    }
+    merged.putAll(hit);
+    transport.enqueue(encode(merged));
+  }
+
+  // e.g. {&t=event, &ea=Sign Up} returns "v=1&tid=UA-1&an=App&av=1.0&t=event&ea=Sign+Up"
+  String encode(Map<String, String> hit) {
+    StringBuilder payload = new StringBuilder(256);
+    payload.append("v=1&tid=").append(urlEncode(trackingId))
+        .append("&an=").append(urlEncode(appName));
+    if (appVersion != null) {
+      payload.append("&av=").append(urlEncode(appVersion));
+    }
+    for (Map.Entry<String, String> entry : hit.entrySet()) {
+      String key = entry.getKey();
+      String value = entry.getValue();
+      if (key == null || value == null) {
+        continue;
+      }
+      payload.append('&')
+          .append(urlEncode(key.startsWith("&") ? key.substring(1) : key))
+          .append('=')
+          .append(urlEncode(value));
+    }
+    return payload.toString();
+  }
+
+  @Override public void setScreenName(String name) {
+    set("&cd", name);
+  }
+
+  @Override public synchronized void set(String key, String value) {
+    if (value == null) {
+      params.remove(key);
+    } else {
+      params.put(key, value);
+    }
+  }
+
+  @Override public void setAnonymizeIp(boolean anonymizeIp) {
+    set("&aip", anonymizeIp ? "1" : null);
+  }
+
+  /**
+   * Send an exception hit ({@code &t=exception}) for uncaught exceptions and wait briefly for it
+   * to go out, as the process is about to die, before handing the exception to the previous
+   * handler.
+   */
+  @Override public void setUncaughtExceptionReporter(Context context) {
+    final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+    Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override public void uncaughtException(Thread thread, Throwable e) {
+        Map<String, String> hit = new HashMap<>();
+        hit.put("&t", "exception");
+        hit.put("&exd", describe(thread, e));
+        hit.put("&exf", "1");
+        send(hit);
+        transport.dispatchNow(EXCEPTION_DISPATCH_TIMEOUT_MILLIS);
+        if (previous != null) {
+          previous.uncaughtException(thread, e);
+        }
+      }
+    });
+  }
+
+  // e.g. "IllegalStateException (@MainActivity:onCreate:42) {main}"
+  static String describe(Thread thread, Throwable e) {
+    StringBuilder description = new StringBuilder(e.getClass().getSimpleName());
+    StackTraceElement[] stackTrace = e.getStackTrace();
+    if (stackTrace != null && stackTrace.length > 0) {
+      StackTraceElement top = stackTrace[0];
+      String className = top.getClassName();
+      description.append(" (@")
+          .append(className.substring(className.lastIndexOf('.') + 1))
+          .append(':').append(top.getMethodName())
+          .append(':').append(top.getLineNumber())
+          .append(')');
+    }
+    description.append(" {").append(thread.getName()).append('}');
+    return description.length() > MAX_EXCEPTION_DESCRIPTION_LENGTH
+        ? description.substring(0, MAX_EXCEPTION_DESCRIPTION_LENGTH) : description.toString();
+  }
+
+  /** There is no Play Services tracker behind this one. */
+  @Override public com.google.android.gms.analytics.Tracker delegate() {
+    return null;
+  }
+
+  static String urlEncode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
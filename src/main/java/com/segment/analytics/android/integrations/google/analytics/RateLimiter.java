@@ -0,0 +1,177 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.Logger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.segment.analytics.internal.Utils.isNullOrEmpty;
+
+/**
+ * Token buckets keyed by event name, so a single event fired in a loop can't use up the session's
+ * hit quota. Each bucket holds up to {@code burst} hits and refills at {@code hitsPerMinute}.
+ * Completed and refunded orders are never limited, so revenue is never dropped.
+ *
+ * Buckets are lock-free: admitting a hit is a single compare-and-set on the bucket's own counter,
+ * so different events never contend with each other.
+ */
+final class RateLimiter {
+  /** Event names beyond this share a single bucket, so unbounded names can't leak memory. */
+  static final int MAX_BUCKETS = 256;
+  static final String OVERFLOW_BUCKET = "<other events>";
+
+  interface Clock {
+    long nanoTime();
+  }
+
+  static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  /** A rate of {@code hitsPerMinute} allowing {@code burst} hits at once. */
+  static final class Limit {
+    final int hitsPerMinute;
+    final int burst;
+
+    Limit(int hitsPerMinute, int burst) {
+      this.hitsPerMinute = hitsPerMinute;
+      this.burst = burst;
+    }
+
+    // e.g. {"hitsPerMinute": 60, "burst": 10}, or null if it isn't a valid limit.
+    static Limit fromSettings(ValueMap settings) {
+      if (isNullOrEmpty(settings)) {
+        return null;
+      }
+      int hitsPerMinute = settings.getInt("hitsPerMinute", 0);
+      if (hitsPerMinute <= 0) {
+        return null;
+      }
+      int burst = settings.getInt("burst", hitsPerMinute);
+      return new Limit(hitsPerMinute, burst <= 0 ? 1 : burst);
+    }
+  }
+
+  private final Limit defaultLimit;
+  private final Map<String, Limit> eventLimits;
+  private final Clock clock;
+  private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+  RateLimiter(Limit defaultLimit, Map<String, Limit> eventLimits, Clock clock) {
+    this.defaultLimit = defaultLimit;
+    this.eventLimits = eventLimits;
+    this.clock = clock;
+  }
+
+  /**
+   * Parse the {@code rateLimit} (applied to every event) and {@code eventRateLimits} (by event
+   * name) settings. Returns {@code null} if neither limits anything.
+   */
+  static RateLimiter fromSettings(ValueMap rateLimit, ValueMap eventRateLimits, Logger logger) {
+    Limit defaultLimit = Limit.fromSettings(rateLimit);
+    if (rateLimit != null && defaultLimit == null) {
+      logger.debug("Ignoring invalid rateLimit: %s", rateLimit);
+    }
+    Map<String, Limit> eventLimits = new HashMap<>();
+    if (!isNullOrEmpty(eventRateLimits)) {
+      for (String event : eventRateLimits.keySet()) {
+        Limit limit = Limit.fromSettings(eventRateLimits.getValueMap(event));
+        if (limit == null) {
+          logger.debug("Ignoring invalid rate limit for %s: %s", event, eventRateLimits.get(event));
+          continue;
+        }
+        eventLimits.put(event, limit);
+      }
+    }
+    if (defaultLimit == null && eventLimits.isEmpty()) {
+      return null;
+    }
+    return new RateLimiter(defaultLimit, Collections.unmodifiableMap(eventLimits), SYSTEM_CLOCK);
+  }
+
+  /** Take a token for {@code event}, returning {@code false} if its hit should be dropped. */
+  boolean tryAcquire(String event) {
+    if (event == null) {
+      return true;
+    }
+    Bucket bucket = buckets.get(event);
+    if (bucket == null) {
+      bucket = createBucket(event);
+      if (bucket == null) {
+        return true;
+      }
+    }
+    return bucket.tryAcquire(clock.nanoTime());
+  }
+
+  private Bucket createBucket(String event) {
+    Limit limit = eventLimits.get(event);
+    if (limit == null) {
+      if (defaultLimit == null) {
+        return null;
+      }
+      if (buckets.size() >= MAX_BUCKETS) {
+        // Every event past the limit lands here, look the shared bucket up before allocating one.
+        Bucket overflow = buckets.get(OVERFLOW_BUCKET);
+        if (overflow != null) {
+          return overflow;
+        }
+        event = OVERFLOW_BUCKET;
+      }
+      limit = defaultLimit;
+    }
+    Bucket bucket = new Bucket(limit, clock.nanoTime());
+    Bucket existing = buckets.putIfAbsent(event, bucket);
+    return existing == null ? bucket : existing;
+  }
+
+  /** Number of hits dropped so far, by event name. */
+  Map<String, Long> droppedCounts() {
+    Map<String, Long> dropped = new HashMap<>();
+    for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+      long count = entry.getValue().dropped.get();
+      if (count > 0) {
+        dropped.put(entry.getKey(), count);
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * A token bucket stored as the time at which it will be full again (the generic cell rate
+   * algorithm): each hit pushes that time back by one interval, and a hit is admitted as long as
+   * the bucket wouldn't need more than {@code burst} intervals to refill.
+   */
+  static final class Bucket {
+    private final long interval;
+    private final long capacity;
+    private final AtomicLong fullAt;
+    final AtomicLong dropped = new AtomicLong();
+
+    Bucket(Limit limit, long now) {
+      interval = TimeUnit.MINUTES.toNanos(1) / limit.hitsPerMinute;
+      capacity = interval * limit.burst;
+      fullAt = new AtomicLong(now);
+    }
+
+    boolean tryAcquire(long now) {
+      while (true) {
+        long current = fullAt.get();
+        long next = (current - now > 0 ? current : now) + interval;
+        if (next - now > capacity) {
+          dropped.incrementAndGet();
+          return false;
+        }
+        if (fullAt.compareAndSet(current, next)) {
+          return true;
+        }
+      }
+    }
+  }
+}
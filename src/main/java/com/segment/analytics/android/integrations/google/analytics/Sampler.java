@@ -0,0 +1,57 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+/**
+ * Client side sampling. Keeps {@code sampleRate} percent of users, deciding by a stable hash of an
+ * id, so every call made with the same id gets the same decision, in every run.
+ *
+ * The decision is only as stable as the id: the integration passes the anonymous id, which is per
+ * install and regenerated by {@code reset()}, so a user may land on the other side of the sample
+ * after logging out or on another device.
+ */
+final class Sampler {
+  // Sample rates are honoured to two decimal places, e.g. 12.34%.
+  static final int BUCKETS = 10000;
+
+  /** Ids hashing to a bucket below this are in the sample. */
+  private final int threshold;
+  /** The last decision, as ids rarely change between calls. */
+  private volatile Decision last;
+
+  Sampler(double sampleRate) {
+    double rate = Math.max(0, Math.min(100, sampleRate));
+    threshold = (int) Math.round(rate * BUCKETS / 100);
+  }
+
+  /** Whether the user with {@code id} is in the sample. Calls without an id are always kept. */
+  boolean isSampled(String id) {
+    if (id == null) {
+      return true;
+    }
+    Decision decision = last;
+    if (decision == null || !decision.id.equals(id)) {
+      decision = new Decision(id, bucket(id) < threshold);
+      last = decision;
+    }
+    return decision.sampled;
+  }
+
+  /** FNV-1a over the characters of {@code id}, reduced to {@code [0, BUCKETS)}. */
+  static int bucket(String id) {
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < id.length(); i++) {
+      hash ^= id.charAt(i);
+      hash *= 0x01000193;
+    }
+    return (hash & 0x7fffffff) % BUCKETS;
+  }
+
+  private static final class Decision {
+    final String id;
+    final boolean sampled;
+
+    Decision(String id, boolean sampled) {
+      this.id = id;
+      this.sampled = sampled;
+    }
+  }
+}
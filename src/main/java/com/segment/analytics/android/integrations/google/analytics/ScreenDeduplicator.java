@@ -0,0 +1,66 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import java.util.Map;
+
+/**
+ * Drops a screen view that repeats the previous one within a short window, as fragment
+ * re-attachment and configuration changes report the same screen several times in a row.
+ *
+ * Screens are compared by a {@link #key} of their name, category and the values of the properties
+ * that map to custom dimensions and metrics. Only the last key is kept.
+ */
+final class ScreenDeduplicator {
+  private final long windowNanos;
+  /** Guarded by this. */
+  private String lastKey;
+  private long lastSentNanos;
+
+  ScreenDeduplicator(long windowNanos) {
+    this.windowNanos = windowNanos;
+  }
+
+  /**
+   * Returns {@code true} if {@code key} equals the last screen sent less than the window before
+   * {@code nowNanos}, otherwise records it as the last screen sent.
+   */
+  synchronized boolean isDuplicate(String key, long nowNanos) {
+    if (key.equals(lastKey) && nowNanos - lastSentNanos < windowNanos) {
+      return true;
+    }
+    lastKey = key;
+    lastSentNanos = nowNanos;
+    return false;
+  }
+
+  /**
+   * Key of a screen: one string of its name, category and the value of each mapped property, in
+   * the order of the mapping, which doesn't change. Each part is prefixed with its length, so no
+   * two different screens have the same key.
+   */
+  static String key(String name, String category, Map<String, Object> properties,
+      CustomMapping customDimensions, CustomMapping customMetrics) {
+    StringBuilder key = new StringBuilder(64);
+    appendPart(key, name);
+    appendPart(key, category);
+    appendMapped(key, properties, customDimensions);
+    appendMapped(key, properties, customMetrics);
+    return key.toString();
+  }
+
+  private static void appendMapped(StringBuilder key, Map<String, Object> properties,
+      CustomMapping mapping) {
+    for (Map.Entry<String, CustomMapping.Slot> entry : mapping.entries()) {
+      Object value = properties.get(entry.getKey());
+      appendPart(key, value == null ? null : value.toString());
+    }
+  }
+
+  // e.g. "home" appends "4:home", null appends "-"
+  private static void appendPart(StringBuilder key, String part) {
+    if (part == null) {
+      key.append('-');
+    } else {
+      key.append(part.length()).append(':').append(part);
+    }
+  }
+}
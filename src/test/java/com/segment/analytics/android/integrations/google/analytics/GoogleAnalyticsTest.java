@@ -12,6 +12,9 @@ import com.segment.analytics.Properties;
 import com.segment.analytics.Properties.Product;
 import com.segment.analytics.Traits;
 import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.google.analytics.EventClassifier.EventType;
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.CallType;
+import com.segment.analytics.android.integrations.google.analytics.MetricsSnapshot.HitType;
 import com.segment.analytics.integrations.IdentifyPayload;
 import com.segment.analytics.integrations.Logger;
 import com.segment.analytics.integrations.ScreenPayload;
@@ -20,26 +23,47 @@ import com.segment.analytics.integrations.TrackPayload;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import static com.segment.analytics.Analytics.LogLevel.DEBUG;
+import static com.segment.analytics.Analytics.LogLevel.NONE;
 import static com.segment.analytics.Analytics.LogLevel.VERBOSE;
 import static com.segment.analytics.Utils.createTraits;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -54,6 +78,11 @@ public class GoogleAnalyticsTest {
   @Mock Application application;
 
   static final String TRACKING_ID = "foo";
+  static final Callable<String> CLIENT_ID = new Callable<String>() {
+    @Override public String call() {
+      return "client";
+    }
+  };
 
   @Before
   public void setUp() {
@@ -94,10 +123,34 @@ public class GoogleAnalyticsTest {
     verify(tracker).setAnonymizeIp(true);
     verify(tracker).setUncaughtExceptionReporter(application);
 
-    assertTrue(integration.sendUserId);
-    assertEquals(customDimensions, integration.customDimensions);
-    assertEquals(customMetrics, integration.customMetrics);
+    assertTrue(integration.mapper.sendUserId);
+    assertEquals(1, integration.mapper.customDimensions.size());
+    assertEquals(1, integration.mapper.customDimensions.get("tag").index);
+    assertEquals("&cd1", integration.mapper.customDimensions.get("tag").key);
+    assertEquals(1, integration.mapper.customMetrics.size());
+    assertEquals(1, integration.mapper.customMetrics.get("lag").index);
+    assertEquals("&cm1", integration.mapper.customMetrics.get("lag").key);
+
+  }
+
+  @Test public void initializeRejectsInvalidCustomDimensionsAndMetrics() {
+    ValueMap customDimensions = new ValueMap().putValue("tag", "dimension1")
+        .putValue("empty", "dimension")
+        .putValue("typo", "dimensoin2")
+        .putValue("number", 3);
+    ValueMap customMetrics = new ValueMap().putValue("lag", "metricX")
+        .putValue("score", "metric12");
 
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("dimensions", customDimensions)
+            .putValue("metrics", customMetrics), Logger.with(VERBOSE));
+
+    assertEquals(1, integration.mapper.customDimensions.size());
+    assertEquals(1, integration.mapper.customDimensions.get("tag").index);
+    assertEquals(1, integration.mapper.customMetrics.size());
+    assertEquals("&cm12", integration.mapper.customMetrics.get("score").key);
+    assertNull(integration.mapper.customMetrics.get("lag"));
   }
 
   @Test public void activityStart() {
@@ -120,33 +173,170 @@ public class GoogleAnalyticsTest {
     // If there are no custom dimensions/metrics and `sendUserId` is false,
     // nothing should happen.
     verify(tracker, never()).set(anyString(), anyString());
+    assertEquals(0, integration.userScope.get().size());
   }
 
   @Test public void identifyWithUserIdAndWithoutCustomDimensionsAndMetrics() {
-    integration.sendUserId = true;
+    integration.mapper.sendUserId = true;
 
     Traits traits = createTraits("foo").putAge(20);
     integration.identify((new IdentifyPayload.Builder()).userId("foo").traits(traits).build());
 
     // If there are no custom dimensions/metrics and `sendUserId` is true,
     // only the userId should be set.
-    verify(tracker).set("&uid", "foo");
+    assertEquals("foo", integration.userScope.get().get("&uid"));
+    assertEquals(1, integration.userScope.get().size());
   }
 
   @Test public void identifyWithUserIdAndCustomDimensionsAndMetrics() {
-    integration.sendUserId = true;
-    integration.customDimensions = new ValueMap().putValue("name", "dimension10");
-    integration.customMetrics = new ValueMap().putValue("level", "metric12");
+    integration.mapper.sendUserId = true;
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("name", "dimension10"), MappingLogger.NONE);
+    integration.mapper.customMetrics = CustomMapping.metrics(
+        new ValueMap().putValue("level", "metric12"), MappingLogger.NONE);
 
     Traits traits = createTraits("foo").putAge(20).putName("Chris").putValue("level", 13);
     integration.identify((new IdentifyPayload.Builder()).userId("foo").traits(traits).build());
 
-    // Verify user id is set.
-    verify(tracker).set("&uid", "foo");
+    // Verify user id, dimensions and metrics are set on the user scope, not the shared tracker.
+    verify(tracker, never()).set(anyString(), anyString());
+    UserScope scope = integration.userScope.get();
+    assertEquals("foo", scope.get("&uid"));
+    assertEquals("Chris", scope.get("&cd10"));
+    assertEquals("13", scope.get("&cm12"));
+
+    integration.reset();
+    assertEquals(0, integration.userScope.get().size());
+    verify(tracker, never()).set(anyString(), anyString());
+  }
 
-    // Verify dimensions and metrics are set.
-    verify(tracker).set("&cd10", "Chris");
-    verify(tracker).set("&cm12", "13");
+  @Test public void resetIsOrderedWithQueuedIdentify() throws Exception {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("asyncDispatch", true)
+            .putValue("sendUserId", true), Logger.with(VERBOSE));
+    final CountDownLatch release = new CountDownLatch(1);
+    integration.dispatcher.dispatch(new Runnable() {
+      @Override public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException ignored) {
+        }
+      }
+    });
+
+    // The worker is busy, so the identify is still queued when reset is called.
+    integration.identify(new IdentifyPayload.Builder().userId("a")
+        .traits(createTraits("a"))
+        .build());
+    integration.reset();
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo").build());
+    release.countDown();
+    integration.dispatcher.drain();
+
+    ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+    verify(tracker).send(captor.capture());
+    assertFalse(captor.getValue().toString(), captor.getValue().containsKey("&uid"));
+    assertEquals(0, integration.userScope.get().size());
+    verify(tracker, never()).set(anyString(), anyString());
+  }
+
+  @Test public void userScopeIsMergedIntoHits() {
+    integration.mapper.sendUserId = true;
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("name", "dimension10").putValue("plan", "dimension11"),
+        MappingLogger.NONE);
+
+    integration.identify(new IdentifyPayload.Builder().userId("foo")
+        .traits(createTraits("foo").putName("Chris").putValue("plan", "free"))
+        .build());
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo")
+        .properties(new Properties().putValue("plan", "pro"))
+        .build());
+
+    // Properties of the hit win over user scoped traits, as with tracker.set.
+    verify(tracker).send(new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("foo")
+        .setLabel(null)
+        .setValue(0)
+        .setCustomDimension(11, "pro")
+        .set("&uid", "foo")
+        .setCustomDimension(10, "Chris")
+        .build());
+
+    integration.reset();
+    integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("bar").build());
+
+    verify(tracker).send(new HitBuilders.ScreenViewBuilder().build());
+  }
+
+  @Test public void identifySwapsUserScope() throws Exception {
+    integration.mapper.sendUserId = true;
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("name", "dimension10"), MappingLogger.NONE);
+    final UserScope initial = integration.userScope.get();
+    final List<Map<String, String>> hits = new CopyOnWriteArrayList<>();
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        hits.add((Map<String, String>) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(tracker).send(anyMapOf(String.class, String.class));
+
+    Thread identify = new Thread(new Runnable() {
+      @Override public void run() {
+        for (int i = 0; i < 200; i++) {
+          integration.identify(new IdentifyPayload.Builder().userId("user" + i)
+              .traits(createTraits("user" + i).putName("name" + i))
+              .build());
+        }
+      }
+    });
+    identify.start();
+    for (int i = 0; i < 200; i++) {
+      integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo").build());
+    }
+    identify.join();
+
+    assertNotSame(initial, integration.userScope.get());
+    for (Map<String, String> hit : hits) {
+      // Never a user id of one identify with the name of another.
+      String userId = hit.get("&uid");
+      String name = hit.get("&cd10");
+      assertTrue(hit.toString(), userId == null ? name == null
+          : name.equals("name" + userId.substring("user".length())));
+    }
+  }
+
+  @Test public void identifySkipsUnchangedParametersUntilReset() {
+    integration.mapper.sendUserId = true;
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("name", "dimension10"), MappingLogger.NONE);
+
+    integration.identify(new IdentifyPayload.Builder().userId("foo")
+        .traits(createTraits("foo").putName("Chris"))
+        .build());
+    integration.identify(new IdentifyPayload.Builder().userId("foo")
+        .traits(createTraits("foo").putName("Chris"))
+        .build());
+    integration.identify(new IdentifyPayload.Builder().userId("foo")
+        .traits(createTraits("foo").putName("Kris"))
+        .build());
+
+    UserScope scope = integration.userScope.get();
+    assertEquals("foo", scope.get("&uid"));
+    assertEquals("Kris", scope.get("&cd10"));
+    assertEquals(3, integration.metrics().setCalls());
+    assertEquals(3, integration.metrics().skippedSetCalls());
+
+    integration.reset();
+    assertEquals(0, integration.userScope.get().size());
+    integration.identify(new IdentifyPayload.Builder().userId("foo")
+        .traits(createTraits("foo").putName("Kris"))
+        .build());
+
+    assertEquals(scope.toString(), integration.userScope.get().toString());
+    assertEquals(5, integration.metrics().setCalls());
   }
 
   @Test public void track() {
@@ -172,7 +362,8 @@ public class GoogleAnalyticsTest {
   }
 
   @Test public void trackWithCustomDimensions() {
-    integration.customDimensions = new ValueMap().putValue("custom", "dimension3");
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("custom", "dimension3"), MappingLogger.NONE);
 
     integration.track((new TrackPayload.Builder()).anonymousId("1234").event("foo")
         .properties(new Properties().putValue("custom", "test"))
@@ -187,7 +378,8 @@ public class GoogleAnalyticsTest {
   }
 
   @Test public void trackWithCustomMetrics() {
-    integration.customMetrics = new ValueMap().putValue("score", "metric5");
+    integration.mapper.customMetrics = CustomMapping.metrics(
+        new ValueMap().putValue("score", "metric5"), MappingLogger.NONE);
 
     integration.track((new TrackPayload.Builder()).anonymousId("1234").event("foo")
         .properties(new Properties().putValue("score", 50))
@@ -224,6 +416,37 @@ public class GoogleAnalyticsTest {
         .build());
   }
 
+  @Test public void campaignParamsAreCachedPerCampaign() throws Exception {
+    Campaign campaign = new Campaign() //
+        .putContent("newsletter") //
+        .putMedium("online")
+        .putName("coupons")
+        .putSource("email");
+    AnalyticsContext context = contextWithCampaign(campaign);
+
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("bar")
+        .context(context).build());
+    integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("foo")
+        .context(context).build());
+    assertEquals(1, integration.mapper.campaignCache.size());
+
+    verify(tracker).send(new HitBuilders.ScreenViewBuilder() //
+        .setCampaignParamsFromUrl(
+            "utm_content=newsletter&utm_source=email&utm_medium=online&utm_campaign=coupons") //
+        .build());
+
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("bar")
+        .context(contextWithCampaign(new Campaign().putSource("google"))).build());
+    assertEquals(2, integration.mapper.campaignCache.size());
+    verify(tracker).send(new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("bar")
+        .setLabel(null)
+        .setValue(0)
+        .setCampaignParamsFromUrl(
+            "utm_content=null&utm_source=google&utm_medium=null&utm_campaign=null")
+        .build());
+  }
+
   @Test public void trackDeepLinkURL() {
     integration.track((new TrackPayload.Builder()).anonymousId("1234").event("Deep Link Opened").properties(new Properties().putValue("url", "app://track.com/open?utm_id=12345&gclid=abcd&nope=")).build());
     verify(tracker).send(new HitBuilders.EventBuilder().setCategory("All")
@@ -234,10 +457,52 @@ public class GoogleAnalyticsTest {
             .build());
   }
 
+  @Test public void trackDeepLinkReusesParsedURL() {
+    String url = "app://track.com/open?utm_source=newsletter&utm_campaign=spring";
+    for (int i = 0; i < 3; i++) {
+      integration.track(new TrackPayload.Builder().anonymousId("1234").event("Deep Link Opened")
+          .properties(new Properties().putValue("url", url))
+          .build());
+    }
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Deep Link Opened")
+        .build());
+
+    verify(tracker, times(3)).send(new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("Deep Link Opened")
+        .setCampaignParamsFromUrl(url)
+        .setLabel(null)
+        .setValue(0)
+        .build());
+    verify(tracker).send(new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("Deep Link Opened")
+        .setLabel(null)
+        .setValue(0)
+        .build());
+    assertEquals(1, integration.mapper.campaignCache.urlCount());
+  }
+
+  @Test public void campaignParamsParseURLsLikeHitBuilders() {
+    String[] urls = {
+        null, "", "app://open", "app://open?", "?", "app://open??utm_source=a",
+        "app://open?utm_source=a?utm_medium=b", "utm_source=a&utm_medium=&utm_term",
+        "app://open?utm_source=a&utm_source=b&gclid=g&dclid=d&aclid=c&anid=n&gmob_t=t",
+        "app://open?x=utm_source=a", "app://open?utm_source=a=b&&utm_id=1&=z",
+        "app://open?referrer=utm_source%3Dgoogle%26utm_medium%3Dcpc",
+        "https://example.com/path#utm_source=a", "app://open?utm_source=a+b%20c"
+    };
+    for (String url : urls) {
+      Map<String, String> expected =
+          new HitBuilders.EventBuilder().setCampaignParamsFromUrl(url).build();
+      HitWriter hitWriter = HitWriter.event(12);
+      CampaignParams.fromUrl(url).applyTo(hitWriter);
+      assertEquals(url, expected, hitWriter.build());
+    }
+  }
+
   @Test public void trackECommerceEventWithCustomDimensionsAndProducts() {
-    integration.customDimensions = new ValueMap()
+    integration.mapper.customDimensions = CustomMapping.dimensions(new ValueMap()
             .putValue("originStationCode", "dimension1")
-            .putValue("tag", "dimension2");
+            .putValue("tag", "dimension2"), MappingLogger.NONE);
 
     integration.track((new TrackPayload.Builder()).anonymousId("1234")
         .event("Product Viewed")
@@ -303,7 +568,8 @@ public class GoogleAnalyticsTest {
   }
 
   @Test public void trackECommerceEventWithCustomDimensionsWithoutProductsArray() {
-    integration.customDimensions = new ValueMap().putValue("originStationCode", "dimension1");
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("originStationCode", "dimension1"), MappingLogger.NONE);
 
     integration.track((new TrackPayload.Builder()).anonymousId("1234")
         .event("Product Viewed")
@@ -346,7 +612,8 @@ public class GoogleAnalyticsTest {
   }
 
   @Test public void trackNonECommerceEventWithCustomDimensionsWithoutProductsArray() {
-    integration.customDimensions = new ValueMap().putValue("originStationCode", "dimension1");
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("originStationCode", "dimension1"), MappingLogger.NONE);
 
     integration.track((new TrackPayload.Builder()).anonymousId("1234")
         .event("Custom Event")
@@ -417,7 +684,8 @@ public class GoogleAnalyticsTest {
   }
 
   @Test public void screenWithCustomDimensions() {
-    integration.customDimensions = new ValueMap().putValue("custom", "dimension10");
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("custom", "dimension10"), MappingLogger.NONE);
 
     integration.screen((new ScreenPayload.Builder()).anonymousId("1234").name("foo")
         .properties(new Properties().putValue("custom", "value"))
@@ -430,7 +698,8 @@ public class GoogleAnalyticsTest {
   }
 
   @Test public void screenWithCustomMetrics() {
-    integration.customMetrics = new ValueMap().putValue("count", "metric14");
+    integration.mapper.customMetrics = CustomMapping.metrics(
+        new ValueMap().putValue("count", "metric14"), MappingLogger.NONE);
 
     integration.screen((new ScreenPayload.Builder()).anonymousId("1234").name("foo")
         .properties(new Properties().putValue("count", 100))
@@ -490,12 +759,597 @@ public class GoogleAnalyticsTest {
     verify(tracker).send(new HitBuilders.ScreenViewBuilder().build());
   }
 
+  @Test public void sampleRateDropsCallsOfUsersOutsideTheSample() {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("sampleRate", 0)
+            .putValue("sampleTransactions", false), Logger.with(VERBOSE));
+
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo").build());
+    integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("bar").build());
+    verify(tracker, never()).send(anyMapOf(String.class, String.class));
+    assertEquals(2, integration.metrics().sampledOut());
+
+    // Completed orders bypass sampling when sampleTransactions is off.
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+        .properties(new Properties().putOrderId("o1").putTotal(10))
+        .build());
+    verify(tracker, times(2)).send(anyMapOf(String.class, String.class));
+    assertEquals(2, integration.metrics().sampledOut());
+  }
+
+  @Test public void samplerKeepsOrDropsEachUserConsistently() {
+    Sampler sampler = new Sampler(50);
+    int sampled = 0;
+    for (int i = 0; i < 1000; i++) {
+      String id = "user-" + i;
+      boolean decision = sampler.isSampled(id);
+      assertEquals(decision, sampler.isSampled(id));
+      assertEquals(decision, new Sampler(50).isSampled(id));
+      assertEquals(decision, Sampler.bucket(id) < Sampler.BUCKETS / 2);
+      if (decision) {
+        sampled++;
+      }
+    }
+    assertTrue("sampled " + sampled, sampled > 400 && sampled < 600);
+
+    assertTrue(new Sampler(100).isSampled("user-1"));
+    assertFalse(new Sampler(0).isSampled("user-1"));
+    assertTrue(new Sampler(0).isSampled(null));
+  }
+
+  @Test public void rateLimitDropsEventsFiredTooOften() {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("eventRateLimits", new ValueMap().putValue("Item Impressed",
+                new ValueMap().putValue("hitsPerMinute", 1).putValue("burst", 2))),
+        Logger.with(VERBOSE));
+
+    for (int i = 0; i < 5; i++) {
+      integration.track(
+          new TrackPayload.Builder().anonymousId("1234").event("Item Impressed").build());
+      integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo").build());
+    }
+
+    // Events without a limit of their own are not limited when there is no global limit.
+    verify(tracker, times(7)).send(anyMapOf(String.class, String.class));
+    assertEquals(3, integration.metrics().rateLimited("Item Impressed"));
+    assertEquals(0, integration.metrics().rateLimited("foo"));
+    assertEquals(3, integration.metrics().rateLimited());
+  }
+
+  @Test public void rateLimitNeverDropsTransactions() {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("rateLimit", new ValueMap().putValue("hitsPerMinute", 1))
+            .putValue("ecommerceEvents", new ValueMap().putValue("Order Refunded", "refund")),
+        Logger.with(VERBOSE));
+
+    for (int i = 0; i < 3; i++) {
+      integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+          .properties(new Properties().putOrderId("o" + i).putTotal(10))
+          .build());
+      integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Refunded")
+          .properties(new Properties().putOrderId("o" + i))
+          .build());
+    }
+
+    assertEquals(0, integration.metrics().rateLimited());
+    assertEquals(6, integration.metrics().hits(HitType.TRANSACTION));
+  }
+
+  @Test public void rateLimiterSharesOneBucketPastTheLimit() {
+    RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(1, 1),
+        Collections.<String, RateLimiter.Limit>emptyMap(), RateLimiter.SYSTEM_CLOCK);
+    for (int i = 0; i < RateLimiter.MAX_BUCKETS; i++) {
+      assertTrue(limiter.tryAcquire("event " + i));
+    }
+
+    assertTrue(limiter.tryAcquire("overflow 1"));
+    assertFalse(limiter.tryAcquire("overflow 2"));
+    assertFalse(limiter.tryAcquire("overflow 3"));
+    assertEquals(Long.valueOf(2), limiter.droppedCounts().get(RateLimiter.OVERFLOW_BUCKET));
+    assertEquals(1, limiter.droppedCounts().size());
+  }
+
+  @Test public void rateLimiterRefillsBuckets() {
+    final long[] now = { 0 };
+    RateLimiter.Clock clock = new RateLimiter.Clock() {
+      @Override public long nanoTime() {
+        return now[0];
+      }
+    };
+    RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(60, 2),
+        Collections.singletonMap("slow", new RateLimiter.Limit(1, 1)), clock);
+
+    assertTrue(limiter.tryAcquire("fast"));
+    assertTrue(limiter.tryAcquire("fast"));
+    assertFalse(limiter.tryAcquire("fast"));
+    assertTrue(limiter.tryAcquire("slow"));
+    assertFalse(limiter.tryAcquire("slow"));
+
+    // 60 hits per minute refills one token a second.
+    now[0] = TimeUnit.SECONDS.toNanos(1);
+    assertTrue(limiter.tryAcquire("fast"));
+    assertFalse(limiter.tryAcquire("fast"));
+    assertFalse(limiter.tryAcquire("slow"));
+
+    // A long pause refills up to the burst size only.
+    now[0] = TimeUnit.MINUTES.toNanos(10);
+    assertTrue(limiter.tryAcquire("fast"));
+    assertTrue(limiter.tryAcquire("fast"));
+    assertFalse(limiter.tryAcquire("fast"));
+    assertTrue(limiter.tryAcquire("slow"));
+
+    assertEquals(Long.valueOf(3), limiter.droppedCounts().get("fast"));
+    assertEquals(Long.valueOf(2), limiter.droppedCounts().get("slow"));
+  }
+
+  @Test public void repeatedScreensAreSuppressedWithinTheWindow() {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("screenDedupWindowMillis", 60000)
+            .putValue("dimensions", new ValueMap().putValue("tab", "dimension1")),
+        Logger.with(VERBOSE));
+
+    integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("home")
+        .properties(new Properties().putValue("tab", "a").putValue("unmapped", 1))
+        .build());
+    integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("home")
+        .properties(new Properties().putValue("tab", "a").putValue("unmapped", 2))
+        .build());
+    // A different mapped dimension is a different screen.
+    integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("home")
+        .properties(new Properties().putValue("tab", "b"))
+        .build());
+    integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("home")
+        .properties(new Properties().putValue("tab", "b"))
+        .build());
+
+    verify(tracker, times(2)).send(anyMapOf(String.class, String.class));
+    assertEquals(2, integration.metrics().suppressedScreens());
+  }
+
+  @Test public void screenDeduplicatorComparesKeysWithinTheWindow() {
+    CustomMapping dimensions =
+        CustomMapping.dimensions(new ValueMap().putValue("tab", "dimension1"), MappingLogger.NONE);
+    Properties properties = new Properties().putValue("tab", "a").putValue("x", 1);
+    String home = ScreenDeduplicator.key("home", null, properties, dimensions,
+        CustomMapping.EMPTY);
+    assertEquals(home, ScreenDeduplicator.key("home", null,
+        new Properties().putValue("x", 2).putValue("tab", "a"), dimensions, CustomMapping.EMPTY));
+    assertNotEquals(home, ScreenDeduplicator.key("home", "c", properties, dimensions,
+        CustomMapping.EMPTY));
+    assertNotEquals(home, ScreenDeduplicator.key("settings", null, properties, dimensions,
+        CustomMapping.EMPTY));
+    // Parts can't run into each other.
+    assertNotEquals(home, ScreenDeduplicator.key("ho", "me", properties, dimensions,
+        CustomMapping.EMPTY));
+    // "Aa" and "BB" have the same hash code.
+    assertNotEquals(
+        ScreenDeduplicator.key("home", null, new Properties().putValue("tab", "Aa"), dimensions,
+            CustomMapping.EMPTY),
+        ScreenDeduplicator.key("home", null, new Properties().putValue("tab", "BB"), dimensions,
+            CustomMapping.EMPTY));
+    String settings = ScreenDeduplicator.key("settings", null, properties,
+        dimensions, CustomMapping.EMPTY);
+
+    ScreenDeduplicator deduplicator = new ScreenDeduplicator(100);
+    assertFalse(deduplicator.isDuplicate(home, 0));
+    assertTrue(deduplicator.isDuplicate(home, 50));
+    // The window starts at the last screen sent, not the last duplicate.
+    assertTrue(deduplicator.isDuplicate(home, 99));
+    assertFalse(deduplicator.isDuplicate(home, 100));
+    assertFalse(deduplicator.isDuplicate(settings, 120));
+    assertFalse(deduplicator.isDuplicate(home, 130));
+  }
+
   @Test public void flush() {
     integration.flush();
 
     verify(googleAnalytics).dispatchLocalHits();
   }
 
+  @Test public void flushesAreCoalescedWithinTheWindow() {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("flushCoalesceWindowMillis", 200), Logger.with(VERBOSE));
+
+    integration.flush();
+    integration.flush();
+    integration.flush();
+    verify(googleAnalytics, never()).dispatchLocalHits();
+
+    verify(googleAnalytics, timeout(2000)).dispatchLocalHits();
+    assertEquals(2, integration.metrics().coalescedFlushes());
+
+    // A request after the window has passed schedules a new flush.
+    integration.flush();
+    verify(googleAnalytics, timeout(2000).times(2)).dispatchLocalHits();
+  }
+
+  @Test public void activityStopAndCompletedOrdersFlushImmediately() {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("flushCoalesceWindowMillis", 60000), Logger.with(VERBOSE));
+
+    integration.flush();
+    integration.onActivityStopped(mock(Activity.class));
+    verify(googleAnalytics, timeout(2000)).dispatchLocalHits();
+
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+        .properties(new Properties().putOrderId("o1").putTotal(10))
+        .build());
+    verify(googleAnalytics, times(2)).dispatchLocalHits();
+    assertEquals(2, integration.metrics().flushes());
+  }
+
+  @Test public void activityStopDoesNotWaitForQueuedHits() throws Exception {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("asyncDispatch", true)
+            .putValue("flushCoalesceWindowMillis", 60000), Logger.with(VERBOSE));
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+        release.await();
+        return null;
+      }
+    }).when(tracker).send(anyMapOf(String.class, String.class));
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo").build());
+
+    // The worker is stuck sending the hit, yet the callback returns.
+    integration.onActivityStopped(mock(Activity.class));
+    verify(googleAnalytics, never()).dispatchLocalHits();
+
+    release.countDown();
+    InOrder inOrder = inOrder(tracker, googleAnalytics);
+    inOrder.verify(tracker, timeout(2000)).send(anyMapOf(String.class, String.class));
+    inOrder.verify(googleAnalytics, timeout(2000)).dispatchLocalHits();
+  }
+
+  @Test public void deferredIntegrationBuffersCallsUntilReady() throws Exception {
+    final CountDownLatch initialize = new CountDownLatch(1);
+    DeferredIntegration deferred =
+        new DeferredIntegration(new Callable<GoogleAnalyticsIntegration>() {
+          @Override public GoogleAnalyticsIntegration call() throws Exception {
+            initialize.await();
+            return integration;
+          }
+        }, 2, Logger.with(VERBOSE));
+
+    deferred.track(new TrackPayload.Builder().anonymousId("1234").event("a").build());
+    deferred.screen(new ScreenPayload.Builder().anonymousId("1234").name("b").build());
+    deferred.track(new TrackPayload.Builder().anonymousId("1234").event("c").build());
+    assertFalse(deferred.isReady());
+    assertNull(deferred.getUnderlyingInstance());
+    verify(tracker, never()).send(anyMapOf(String.class, String.class));
+
+    initialize.countDown();
+    for (int i = 0; i < 200 && !deferred.isReady(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(deferred.isReady());
+    assertEquals(1, deferred.droppedCount());
+
+    InOrder inOrder = inOrder(tracker);
+    inOrder.verify(tracker).send(new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("a")
+        .setLabel(null)
+        .setValue(0)
+        .build());
+    inOrder.verify(tracker).setScreenName("b");
+    verify(tracker, times(2)).send(anyMapOf(String.class, String.class));
+
+    // Once ready, calls go straight through.
+    deferred.flush();
+    verify(googleAnalytics).dispatchLocalHits();
+  }
+
+  @Test public void deferredIntegrationNeverDropsIdentifyResetOrOrders() throws Exception {
+    final CountDownLatch initialize = new CountDownLatch(1);
+    integration.mapper.sendUserId = true;
+    DeferredIntegration deferred =
+        new DeferredIntegration(new Callable<GoogleAnalyticsIntegration>() {
+          @Override public GoogleAnalyticsIntegration call() throws Exception {
+            initialize.await();
+            return integration;
+          }
+        }, 1, Logger.with(VERBOSE));
+
+    deferred.track(new TrackPayload.Builder().anonymousId("1234").event("a").build());
+    deferred.identify(new IdentifyPayload.Builder().userId("user")
+        .traits(createTraits("user"))
+        .build());
+    deferred.reset();
+    deferred.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+        .properties(new Properties().putOrderId("o1").putTotal(10))
+        .build());
+    deferred.screen(new ScreenPayload.Builder().anonymousId("1234").name("b").build());
+    assertEquals(0, deferred.metrics().totalHits());
+
+    initialize.countDown();
+    for (int i = 0; i < 200 && !deferred.isReady(); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, deferred.droppedCount());
+    assertEquals(1, deferred.metrics().hits(HitType.TRANSACTION));
+    // The reset was replayed after the identify, so the order isn't attributed to the user.
+    ArgumentCaptor<Map<String, String>> hits = ArgumentCaptor.forClass(Map.class);
+    verify(tracker, times(3)).send(hits.capture());
+    for (Map<String, String> hit : hits.getAllValues()) {
+      assertNull(hit.get("&uid"));
+    }
+  }
+
+  @Test public void deferredIntegrationBoundsEssentialCalls() throws Exception {
+    final CountDownLatch initialize = new CountDownLatch(1);
+    DeferredIntegration deferred =
+        new DeferredIntegration(new Callable<GoogleAnalyticsIntegration>() {
+          @Override public GoogleAnalyticsIntegration call() throws Exception {
+            initialize.await();
+            return integration;
+          }
+        }, 1, 2, Logger.with(VERBOSE));
+
+    deferred.screen(new ScreenPayload.Builder().anonymousId("1234").name("a").build());
+    for (int i = 0; i < 3; i++) {
+      deferred.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+          .properties(new Properties().putOrderId("o" + i).putTotal(10))
+          .build());
+    }
+    // Essential calls don't take the space of other calls, nor do they fill it.
+    deferred.screen(new ScreenPayload.Builder().anonymousId("1234").name("b").build());
+    assertEquals(2, deferred.droppedCount());
+
+    initialize.countDown();
+    for (int i = 0; i < 200 && !deferred.isReady(); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, deferred.metrics().hits(HitType.TRANSACTION));
+    verify(tracker).setScreenName("a");
+    verify(tracker, never()).setScreenName("b");
+  }
+
+  @Test public void deferredIntegrationReplaysWithoutBlockingCallers() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch replaying = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+        replaying.countDown();
+        release.await();
+        return null;
+      }
+    }).when(tracker).setScreenName("a");
+    final CountDownLatch initialize = new CountDownLatch(1);
+    DeferredIntegration deferred =
+        new DeferredIntegration(new Callable<GoogleAnalyticsIntegration>() {
+          @Override public GoogleAnalyticsIntegration call() throws Exception {
+            initialize.await();
+            return integration;
+          }
+        }, 10, Logger.with(VERBOSE));
+    deferred.screen(new ScreenPayload.Builder().anonymousId("1234").name("a").build());
+
+    initialize.countDown();
+    assertTrue(replaying.await(2, TimeUnit.SECONDS));
+    // The replay is stuck, yet this call returns: it is buffered and replayed next.
+    deferred.screen(new ScreenPayload.Builder().anonymousId("1234").name("b").build());
+    assertFalse(deferred.isReady());
+
+    release.countDown();
+    for (int i = 0; i < 200 && !deferred.isReady(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(deferred.isReady());
+    InOrder inOrder = inOrder(tracker);
+    inOrder.verify(tracker).setScreenName("a");
+    inOrder.verify(tracker).setScreenName("b");
+  }
+
+  @Test public void asyncDispatchSendsHitsOnWorkerAndDrainsOnFlush() {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("asyncDispatch", true), Logger.with(VERBOSE));
+    final List<Thread> sendThreads = new CopyOnWriteArrayList<>();
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        sendThreads.add(Thread.currentThread());
+        return null;
+      }
+    }).when(tracker).send(anyMapOf(String.class, String.class));
+
+    for (int i = 0; i < 10; i++) {
+      integration.track((new TrackPayload.Builder()).anonymousId("1234").event("foo").build());
+    }
+    integration.flush();
+
+    assertEquals(10, sendThreads.size());
+    for (Thread thread : sendThreads) {
+      assertNotSame(Thread.currentThread(), thread);
+    }
+    InOrder inOrder = inOrder(tracker, googleAnalytics);
+    inOrder.verify(tracker, times(10)).send(anyMapOf(String.class, String.class));
+    inOrder.verify(googleAnalytics).dispatchLocalHits();
+  }
+
+  @Test public void droppedCallsAreReportedInMetrics() throws Exception {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("asyncDispatch", true), Logger.with(VERBOSE));
+    integration.dispatcher.shutdown();
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo").build());
+
+    assertEquals(1, integration.metrics().droppedCalls());
+    assertTrue(integration.metrics().toString().contains("droppedCalls=1"));
+  }
+
+  @Test public void hitDispatcherOverflowPolicies() throws Exception {
+    for (HitDispatcher.OverflowPolicy policy : new HitDispatcher.OverflowPolicy[] {
+        HitDispatcher.OverflowPolicy.DROP_NEWEST, HitDispatcher.OverflowPolicy.DROP_OLDEST
+    }) {
+      HitDispatcher dispatcher = new HitDispatcher(1, policy, Logger.with(VERBOSE));
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final List<String> ran = new CopyOnWriteArrayList<>();
+      dispatcher.dispatch(new Runnable() {
+        @Override public void run() {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ignored) {
+          }
+        }
+      });
+      started.await();
+      dispatcher.dispatch(recordingTask(ran, "first"));
+      dispatcher.dispatch(recordingTask(ran, "second"));
+      release.countDown();
+      dispatcher.drain();
+
+      assertEquals(1, dispatcher.droppedCount());
+      if (policy == HitDispatcher.OverflowPolicy.DROP_NEWEST) {
+        assertEquals(Collections.singletonList("first"), ran);
+      } else {
+        assertEquals(Collections.singletonList("second"), ran);
+      }
+    }
+  }
+
+  @Test public void hitDispatcherNeverEvictsEssentialTasks() throws Exception {
+    HitDispatcher dispatcher =
+        new HitDispatcher(1, HitDispatcher.OverflowPolicy.DROP_OLDEST, Logger.with(VERBOSE));
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<String> ran = new CopyOnWriteArrayList<>();
+    dispatcher.dispatch(new Runnable() {
+      @Override public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ignored) {
+        }
+      }
+    });
+    started.await();
+    dispatcher.dispatchEssential(recordingTask(ran, "essential"));
+    // The queue only holds the essential task, which the hit can't evict.
+    dispatcher.dispatch(recordingTask(ran, "hit"));
+    release.countDown();
+    dispatcher.drain();
+
+    assertEquals(Collections.singletonList("essential"), ran);
+    assertEquals(1, dispatcher.droppedCount());
+  }
+
+  @Test public void hitDispatcherShutdown() throws Exception {
+    HitDispatcher dispatcher =
+        new HitDispatcher(10, HitDispatcher.OverflowPolicy.DROP_NEWEST, Logger.with(VERBOSE));
+    final List<String> ran = new CopyOnWriteArrayList<>();
+    dispatcher.dispatch(recordingTask(ran, "first"));
+    dispatcher.drain();
+
+    dispatcher.shutdown();
+    dispatcher.dispatch(recordingTask(ran, "second"));
+    // Returns right away instead of waiting for a worker that is gone.
+    dispatcher.drain();
+
+    assertEquals(Collections.singletonList("first"), ran);
+    assertEquals(1, dispatcher.droppedCount());
+  }
+
+  private static Runnable recordingTask(final List<String> ran, final String name) {
+    return new Runnable() {
+      @Override public void run() {
+        ran.add(name);
+      }
+    };
+  }
+
+  @Test public void hitsAreNotFormattedWhenLoggingIsOff() {
+    // Debug is the most verbose level that doesn't log hits.
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID), Logger.with(DEBUG));
+    assertFalse(integration.verbose);
+
+    ToStringCountingMap hit = new ToStringCountingMap();
+    integration.send(HitType.EVENT, hit);
+
+    verify(tracker).send(hit);
+    assertEquals(0, hit.toStringCount);
+  }
+
+  @Test public void hitsAreFormattedWhenLoggingIsVerbose() {
+    assertTrue(integration.verbose);
+
+    ToStringCountingMap hit = new ToStringCountingMap();
+    integration.send(HitType.EVENT, hit);
+
+    verify(tracker).send(hit);
+    assertTrue(hit.toStringCount > 0);
+  }
+
+  static class ToStringCountingMap extends LinkedHashMap<String, String> {
+    int toStringCount;
+
+    @Override public String toString() {
+      toStringCount++;
+      return super.toString();
+    }
+  }
+
+  @Test public void metricsCountHitsSetCallsAndFlushes() {
+    integration.mapper.sendUserId = true;
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("name", "dimension1"), MappingLogger.NONE);
+
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo").build());
+    integration.track(new TrackPayload.Builder().anonymousId("1234")
+        .event("Order Completed")
+        .properties(new Properties().putOrderId("1").putProducts(new Product("a", "b", 1)))
+        .build());
+    integration.track(new TrackPayload.Builder().anonymousId("1234")
+        .event("Product Added")
+        .properties(new Properties().putProductId("a"))
+        .build());
+    integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("foo").build());
+    integration.identify(new IdentifyPayload.Builder().userId("foo")
+        .traits(createTraits("foo").putName("bar"))
+        .build());
+    integration.flush();
+
+    MetricsSnapshot metrics = integration.metrics();
+    assertEquals(3, metrics.hits(HitType.EVENT));
+    assertEquals(1, metrics.hits(HitType.TRANSACTION));
+    assertEquals(1, metrics.hits(HitType.PRODUCT));
+    assertEquals(1, metrics.hits(HitType.SCREENVIEW));
+    assertEquals(6, metrics.totalHits());
+    assertEquals(2, metrics.setCalls());
+    assertTrue(metrics.hitBytes() > 0);
+    assertEquals(3, metrics.mappingLatency(CallType.TRACK).count());
+    assertEquals(1, metrics.mappingLatency(CallType.SCREEN).count());
+    assertEquals(1, metrics.mappingLatency(CallType.IDENTIFY).count());
+    assertEquals(1, metrics.flushes());
+  }
+
+  @Test public void latencyHistogramBucketsByPowersOfTwo() {
+    IntegrationMetrics.LatencyRecorder recorder = new IntegrationMetrics.LatencyRecorder();
+    recorder.record(500); // 0us
+    recorder.record(1500); // 1us
+    recorder.record(3000); // 3us
+    recorder.record(3000000); // 3000us
+
+    MetricsSnapshot.Histogram histogram = recorder.snapshot();
+    assertEquals(4, histogram.count());
+    assertEquals(1, histogram.count(0));
+    assertEquals(1, histogram.count(1));
+    assertEquals(1, histogram.count(2));
+    assertEquals(1, histogram.count(12));
+    assertEquals(2, histogram.percentileMicros(50));
+    assertEquals(4096, histogram.percentileMicros(100));
+    assertEquals(3005000 / 4, histogram.meanNanos());
+  }
+
   @Test public void sendProductEvent() {
     Properties properties = new Properties().putOrderId("foo")
         .putProductId("foo")
@@ -506,7 +1360,7 @@ public class GoogleAnalyticsTest {
         .putCategory("purchase")
         .putValue("quantity", 10);
 
-    integration.sendProductEvent("Viewed Product", "sports", properties);
+    integration.mapper.sendProductEvent("Viewed Product", "sports", properties);
 
     com.google.android.gms.analytics.ecommerce.Product product =
             new com.google.android.gms.analytics.ecommerce.Product()
@@ -535,7 +1389,7 @@ public class GoogleAnalyticsTest {
             .putPrice(20)
             .putValue("quantity", 10);
 
-    integration.sendProductEvent("Product Viewed", "sports", properties);
+    integration.mapper.sendProductEvent("Product Viewed", "sports", properties);
 
     com.google.android.gms.analytics.ecommerce.Product product =
             new com.google.android.gms.analytics.ecommerce.Product()
@@ -556,8 +1410,10 @@ public class GoogleAnalyticsTest {
   }
 
   @Test public void sendProductEventWithCustomDimensionsAndMetrics() {
-    integration.customDimensions = new ValueMap().putValue("customDimension", "dimension2");
-    integration.customMetrics = new ValueMap().putValue("customMetric", "metric3");
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("customDimension", "dimension2"), MappingLogger.NONE);
+    integration.mapper.customMetrics = CustomMapping.metrics(
+        new ValueMap().putValue("customMetric", "metric3"), MappingLogger.NONE);
 
     Properties properties = new Properties().putOrderId("foo")
         .putProductId("foo")
@@ -568,7 +1424,7 @@ public class GoogleAnalyticsTest {
         .putValue("quantity", 10)
         .putValue("customMetric", 32)
         .putValue("customDimension", "barbaz");
-    integration.sendProductEvent("Removed Product", "sports", properties);
+    integration.mapper.sendProductEvent("Removed Product", "sports", properties);
 
     com.google.android.gms.analytics.ecommerce.Product product =
             new com.google.android.gms.analytics.ecommerce.Product()
@@ -592,8 +1448,446 @@ public class GoogleAnalyticsTest {
         .build());
   }
 
+  @Test public void sendBatchedProductEventPacksProductsIntoHits() {
+    integration.mapper.batchProductEvents = true;
+    integration.mapper.productsPerHit = 2;
+    integration.mapper.customDimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("origin", "dimension1").putValue("tag", "dimension2"),
+        MappingLogger.NONE);
+
+    Properties properties = new Properties().putValue("tag", "foo")
+        .putProducts(new Product("a", "skuA", 1).putName("A").putValue("origin", "x"),
+            new Product("b", "skuB", 2).putName("B").putValue("origin", "y"),
+            new Product("c", "skuC", 3).putName("C").putValue("origin", "z"));
+
+    integration.mapper.sendProductEvent("Product Added", null, properties);
+
+    ProductAction productAction = new ProductAction(ProductAction.ACTION_ADD);
+    verify(tracker).send(new HitBuilders.EventBuilder()
+        .addProduct(new com.google.android.gms.analytics.ecommerce.Product().setId("a")
+            .setName("A").setCategory("All").setPrice(1).setQuantity(0)
+            .setCustomDimension(1, "x").setCustomDimension(2, "foo"))
+        .addProduct(new com.google.android.gms.analytics.ecommerce.Product().setId("b")
+            .setName("B").setCategory("All").setPrice(2).setQuantity(0)
+            .setCustomDimension(1, "y").setCustomDimension(2, "foo"))
+        .setProductAction(productAction)
+        .setAction("Product Added")
+        .setCategory("EnhancedEcommerce")
+        .setCustomDimension(2, "foo")
+        .build());
+    verify(tracker).send(new HitBuilders.EventBuilder()
+        .addProduct(new com.google.android.gms.analytics.ecommerce.Product().setId("c")
+            .setName("C").setCategory("All").setPrice(3).setQuantity(0)
+            .setCustomDimension(1, "z").setCustomDimension(2, "foo"))
+        .setProductAction(productAction)
+        .setAction("Product Added")
+        .setCategory("EnhancedEcommerce")
+        .setCustomDimension(2, "foo")
+        .build());
+    verify(tracker, times(2)).send(anyMapOf(String.class, String.class));
+  }
+
+  @Test public void additionalTrackersWithoutTheirOwnMappingShareHits() {
+    Tracker regional = mock(Tracker.class);
+    when(googleAnalytics.newTracker("bar")).thenReturn(regional);
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("anonymizeIp", true)
+            .putValue("sendUserId", true)
+            .putValue("dimensions", new ValueMap().putValue("custom", "dimension3"))
+            .putValue("additionalTrackers", Arrays.asList(
+                new ValueMap().putValue("mobileTrackingId", "bar"),
+                new ValueMap().putValue("dimensions", new ValueMap()))),
+        Logger.with(VERBOSE));
+
+    // Entries without a tracking id are ignored.
+    assertEquals(1, integration.additionalTrackers.size());
+    verify(regional).setAnonymizeIp(true);
+
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo")
+        .properties(new Properties().putValue("custom", "test"))
+        .build());
+    integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("bar").build());
+    integration.identify(new IdentifyPayload.Builder().userId("foo")
+        .traits(createTraits("foo").putValue("custom", "baz"))
+        .build());
+
+    Map<String, String> hit = new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("foo")
+        .setLabel(null)
+        .setValue(0)
+        .setCustomDimension(3, "test")
+        .build();
+    verify(tracker).send(hit);
+    verify(regional).send(hit);
+    verify(regional).setScreenName("bar");
+    verify(regional).send(new HitBuilders.ScreenViewBuilder().build());
+    verify(regional, never()).set(anyString(), anyString());
+
+    // The user scope is merged into the primary hit, which is shared as is.
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("bar").build());
+    Map<String, String> identified = new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("bar")
+        .setLabel(null)
+        .setValue(0)
+        .set("&uid", "foo")
+        .setCustomDimension(3, "baz")
+        .build();
+    verify(tracker).send(identified);
+    verify(regional).send(identified);
+    // Adding properties doesn't inflate the hit counts.
+    assertEquals(3, integration.metrics().totalHits());
+    assertEquals(3, integration.metrics().additionalTrackerHits());
+  }
+
+  @Test public void additionalTrackersWithTheirOwnMappingRemapHits() {
+    Tracker regional = mock(Tracker.class);
+    when(googleAnalytics.newTracker("bar")).thenReturn(regional);
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("dimensions", new ValueMap().putValue("custom", "dimension3"))
+            .putValue("batchProductEvents", true)
+            .putValue("additionalTrackers", Collections.singletonList(
+                new ValueMap().putValue("mobileTrackingId", "bar")
+                    .putValue("dimensions", new ValueMap().putValue("custom", "dimension7"))
+                    .putValue("metrics", new ValueMap().putValue("score", "metric2")))),
+        Logger.with(VERBOSE));
+
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo")
+        .properties(new Properties().putValue("custom", "test").putValue("score", 5))
+        .build());
+
+    verify(tracker).send(new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("foo")
+        .setLabel(null)
+        .setValue(0)
+        .setCustomDimension(3, "test")
+        .build());
+    verify(regional).send(new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("foo")
+        .setLabel(null)
+        .setValue(0)
+        .setCustomDimension(7, "test")
+        .setCustomMetric(2, 5)
+        .build());
+
+    integration.mapper.sendProductEvent("Product Viewed", null,
+        new Properties().putValue("custom", "a")
+            .putProducts(new Product("p", "skuP", 1).putName("P").putValue("score", 2),
+                new Product("q", "skuQ", 2).putName("Q").putValue("custom", "b")));
+
+    ProductAction productAction = new ProductAction(ProductAction.ACTION_DETAIL);
+    verify(regional).send(new HitBuilders.EventBuilder()
+        .addProduct(new com.google.android.gms.analytics.ecommerce.Product().setId("p")
+            .setName("P").setCategory("All").setPrice(1).setQuantity(0)
+            .setCustomDimension(7, "a").setCustomMetric(2, 2))
+        .addProduct(new com.google.android.gms.analytics.ecommerce.Product().setId("q")
+            .setName("Q").setCategory("All").setPrice(2).setQuantity(0)
+            .setCustomDimension(7, "b"))
+        .setProductAction(productAction)
+        .setAction("Product Viewed")
+        .setCategory("EnhancedEcommerce")
+        .setCustomDimension(7, "a")
+        .build());
+
+    // Each property gets the traits resolved with its own mapping.
+    integration.identify(new IdentifyPayload.Builder().userId("foo")
+        .traits(createTraits("foo").putValue("custom", "baz").putValue("score", 3))
+        .build());
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("bar").build());
+
+    verify(tracker).send(new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("bar")
+        .setLabel(null)
+        .setValue(0)
+        .setCustomDimension(3, "baz")
+        .build());
+    verify(regional).send(new HitBuilders.EventBuilder().setCategory("All")
+        .setAction("bar")
+        .setLabel(null)
+        .setValue(0)
+        .setCustomDimension(7, "baz")
+        .set("&cm2", "3")
+        .build());
+  }
+
+  @Test public void additionalTrackerRecognizesCustomDimensionAndMetricKeys() {
+    assertTrue(AdditionalTracker.isCustomDimensionOrMetric("&cd3"));
+    assertTrue(AdditionalTracker.isCustomDimensionOrMetric("&cm12"));
+    assertTrue(AdditionalTracker.isCustomDimensionOrMetric("&pr1cd3"));
+    assertTrue(AdditionalTracker.isCustomDimensionOrMetric("&pr10cm2"));
+    assertFalse(AdditionalTracker.isCustomDimensionOrMetric("&cm"));
+    assertFalse(AdditionalTracker.isCustomDimensionOrMetric("&cd"));
+    assertFalse(AdditionalTracker.isCustomDimensionOrMetric("&pr1id"));
+    assertFalse(AdditionalTracker.isCustomDimensionOrMetric("&prcd1"));
+    assertFalse(AdditionalTracker.isCustomDimensionOrMetric("&pr1cd"));
+    assertFalse(AdditionalTracker.isCustomDimensionOrMetric("&ea"));
+  }
+
+  @Test public void compatibilityHitBuildersTakeTheMappedParameters() {
+    CustomMapping dimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("color", "dimension1"), MappingLogger.NONE);
+    ResolvedSlots slots = ResolvedSlots.resolve(dimensions, CustomMapping.EMPTY,
+        new Properties().putValue("color", "red"));
+    CampaignParams campaign = CampaignParams.fromUrl("app://open?utm_source=src&gclid=g");
+
+    GoogleAnalyticsIntegration.EventHitBuilder event =
+        new GoogleAnalyticsIntegration.EventHitBuilder();
+    slots.applyTo(event);
+    campaign.applyTo(event);
+    integration.addEcommerceEventCategory(event, new Properties());
+    HitWriter hitWriter = HitWriter.event(8).setCategory("EnhancedEcommerce");
+    slots.applyTo(hitWriter);
+    campaign.applyTo(hitWriter);
+    assertEquals(hitWriter.build(), event.build());
+
+    GoogleAnalyticsIntegration.ScreenViewHitBuilder screen =
+        new GoogleAnalyticsIntegration.ScreenViewHitBuilder();
+    slots.applyTo(screen);
+    assertEquals("red", screen.build().get("&cd1"));
+  }
+
+  @Test public void resolvedSlotsAreTheSameFromEitherSide() {
+    CustomMapping dimensions = CustomMapping.dimensions(
+        new ValueMap().putValue("color", "dimension1").putValue("size", "dimension2"),
+        MappingLogger.NONE);
+    CustomMapping metrics =
+        CustomMapping.metrics(new ValueMap().putValue("score", "metric3"), MappingLogger.NONE);
+    Properties few = new Properties().putValue("color", "red").putValue("score", 4.5);
+    Properties many = new Properties().putValue("color", "red").putValue("score", 4.5);
+    for (int i = 0; i < 10; i++) {
+      many.putValue("unmapped" + i, i);
+    }
+
+    // Visits the 2 properties for "few", and the 3 mapped names for "many".
+    for (Properties properties : Arrays.asList(few, many)) {
+      ResolvedSlots slots = ResolvedSlots.resolve(dimensions, metrics, properties);
+      HitWriter hitWriter = HitWriter.event(8);
+      slots.applyTo(hitWriter);
+      String product = hitWriter.addProduct();
+      slots.applyToProduct(hitWriter, product);
+      Map<String, String> hit = hitWriter.build();
+
+      assertEquals(5, hit.size()); // And &t.
+      assertEquals("red", hit.get("&cd1"));
+      assertEquals("4.5", hit.get("&cm3"));
+      assertEquals("red", hit.get("&pr1cd1"));
+      assertEquals("4", hit.get("&pr1cm3"));
+    }
+
+    assertTrue(ResolvedSlots.resolve(dimensions, metrics, new Properties()).isEmpty());
+    assertTrue(ResolvedSlots.resolve(CustomMapping.EMPTY, CustomMapping.EMPTY, many).isEmpty());
+  }
+
+  @Test public void hitWriterWritesTheSameEventHitsAsHitBuilders() {
+    assertEquals(new HitBuilders.EventBuilder().setCategory("All")
+            .setAction("foo")
+            .setLabel(null)
+            .setValue(51)
+            .setCustomDimension(3, "bar")
+            .setCustomMetric(2, 1.5f)
+            .setCampaignParamsFromUrl("app://open?utm_source=src&utm_medium=med&gclid=g")
+            .set("&cn", "name")
+            .build(),
+        HitWriter.event(0).setCategory("All")
+            .setAction("foo")
+            .setLabel(null)
+            .setValue(51)
+            .setCustomDimension(3, "bar")
+            .setCustomMetric(2, 1.5f)
+            .setCampaignParamsFromUrl("app://open?utm_source=src&utm_medium=med&gclid=g")
+            .setParameter("&cn", "name")
+            .build());
+
+    assertEquals(new HitBuilders.ScreenViewBuilder().setCustomDimension(1, null).build(),
+        HitWriter.screenView(1).setCustomDimension(1, null).build());
+  }
+
+  @Test public void hitWriterWritesTheSameEcommerceHitsAsHitBuilders() {
+    HitWriter hitWriter = HitWriter.event(4);
+    String first = hitWriter.addProduct();
+    hitWriter.setProductId(first, "a")
+        .setProductName(first, null)
+        .setProductCategory(first, "sports")
+        .setProductPrice(first, 10.5)
+        .setProductQuantity(first, 2)
+        .setProductCustomDimension(first, 4, "x")
+        .setProductCustomMetric(first, 5, 7);
+    String second = hitWriter.addProduct();
+    hitWriter.setProductId(second, "b").setProductPrice(second, 0);
+    hitWriter.setProductAction(ProductAction.ACTION_PURCHASE)
+        .setTransactionId("order")
+        .setTransactionTotals(30, 2.5, 0)
+        .setCategory("EnhancedEcommerce")
+        .setCustomDimension(1, "y");
+
+    assertEquals("&pr2", second);
+    assertEquals(2, hitWriter.productCount());
+    assertEquals(new HitBuilders.EventBuilder()
+        .addProduct(new com.google.android.gms.analytics.ecommerce.Product().setId("a")
+            .setName(null)
+            .setCategory("sports")
+            .setPrice(10.5)
+            .setQuantity(2)
+            .setCustomDimension(4, "x")
+            .setCustomMetric(5, 7))
+        .addProduct(new com.google.android.gms.analytics.ecommerce.Product().setId("b")
+            .setPrice(0))
+        .setProductAction(new ProductAction(ProductAction.ACTION_PURCHASE)
+            .setTransactionId("order")
+            .setTransactionRevenue(30)
+            .setTransactionTax(2.5)
+            .setTransactionShipping(0))
+        .setCategory("EnhancedEcommerce")
+        .setCustomDimension(1, "y")
+        .build(), hitWriter.build());
+  }
+
+  @Test public void largeOrdersAreSplitAtTheProductIndexLimit() {
+    Product[] products = new Product[300];
+    for (int i = 0; i < products.length; i++) {
+      products[i] = new Product("p" + i, null, 1);
+    }
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+        .properties(new Properties().putOrderId("o1").putTotal(300).putProducts(products))
+        .build());
+
+    List<Map<String, String>> hits = sentHits(3);
+    Map<String, String> transaction = hits.get(0);
+    assertEquals("300.0", transaction.get("&tr"));
+    assertEquals("p199", transaction.get("&pr200id"));
+    assertFalse(transaction.containsKey("&pr201id"));
+    Map<String, String> followUp = hits.get(1);
+    assertEquals("o1", followUp.get("&ti"));
+    assertEquals("purchase", followUp.get("&pa"));
+    assertEquals("0.0", followUp.get("&tr"));
+    assertEquals("p200", followUp.get("&pr1id"));
+    assertEquals("p299", followUp.get("&pr100id"));
+    assertFalse(followUp.containsKey("&pr101id"));
+
+    // The order's revenue is only counted once.
+    double revenue = 0;
+    for (Map<String, String> hit : hits.subList(0, 2)) {
+      revenue += Double.parseDouble(hit.get("&tr"));
+    }
+    assertEquals(300, revenue, 0);
+    MetricsSnapshot metrics = integration.metrics();
+    assertEquals(1, metrics.hits(HitType.TRANSACTION));
+    assertEquals(1, metrics.splitHits());
+  }
+
+  @Test public void largeOrdersAreSplitAtThePayloadSizeLimit() {
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 400; i++) {
+      name.append('n');
+    }
+    Product[] products = new Product[50];
+    for (int i = 0; i < products.length; i++) {
+      products[i] = new Product("p" + i, null, 1).putName(name.toString());
+    }
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+        .properties(new Properties().putOrderId("o1").putProducts(products))
+        .build());
+
+    List<Map<String, String>> hits = sentHits(0);
+    int sent = 0;
+    for (Map<String, String> hit : hits.subList(0, hits.size() - 1)) {
+      int size = 0;
+      for (Map.Entry<String, String> param : hit.entrySet()) {
+        size += HitWriter.encodedSize(param.getKey(), param.getValue());
+      }
+      assertTrue("hit of " + size + " bytes", size <= HitMapper.MAX_HIT_SIZE);
+      assertEquals("o1", hit.get("&ti"));
+      for (int i = 1; hit.containsKey("&pr" + i + "id"); i++) {
+        assertEquals("p" + sent++, hit.get("&pr" + i + "id"));
+      }
+    }
+    assertEquals(50, sent);
+    assertTrue(hits.size() > 3);
+    assertEquals(hits.size() - 2, integration.metrics().splitHits());
+  }
+
+  @Test public void oversizedFieldsAreTruncated() {
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 600; i++) {
+      name.append('n');
+    }
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+        .properties(new Properties().putOrderId("o1")
+            .putProducts(new Product("p", null, 1).putName(name.toString())))
+        .build());
+
+    assertEquals(HitWriter.MAX_TEXT_LENGTH, sentHits(2).get(0).get("&pr1nm").length());
+    assertEquals(1, integration.metrics().truncatedFields());
+  }
+
+  @Test public void fieldsAreTruncatedToTheirUtf8Length() throws Exception {
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      name.append("\u00e9\ud83d\ude00"); // 2 + 4 bytes.
+    }
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+        .properties(new Properties().putOrderId("o1")
+            .putProducts(new Product("p", null, 1).putName(name.toString())))
+        .build());
+
+    String truncated = sentHits(2).get(0).get("&pr1nm");
+    int bytes = truncated.getBytes("UTF-8").length;
+    assertTrue(bytes + " bytes", bytes <= HitWriter.MAX_TEXT_LENGTH);
+    assertTrue(bytes + " bytes", bytes > HitWriter.MAX_TEXT_LENGTH - 6);
+    assertFalse(Character.isHighSurrogate(truncated.charAt(truncated.length() - 1)));
+    assertEquals(1, integration.metrics().truncatedFields());
+  }
+
+  @Test public void productsMovedToAFollowUpHitAreTruncatedOnce() {
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 600; i++) {
+      name.append('n');
+    }
+    Product[] products = new Product[20];
+    for (int i = 0; i < products.length; i++) {
+      products[i] = new Product("p" + i, null, 1).putName(name.toString());
+    }
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+        .properties(new Properties().putOrderId("o1").putProducts(products))
+        .build());
+
+    assertTrue(integration.metrics().splitHits() > 0);
+    assertEquals(products.length, integration.metrics().truncatedFields());
+  }
+
+  @Test public void hitWriterEstimatesEncodedSize() {
+    assertEquals(0, HitWriter.encodedSize("&ea", null));
+    assertEquals("&ea=".length() + "a b.c".length(), HitWriter.encodedSize("&ea", "a b.c"));
+    assertEquals("&ea=".length() + "%26%3D".length(), HitWriter.encodedSize("&ea", "&="));
+    assertEquals("&ea=".length() + "%C3%A9%E2%82%AC".length(),
+        HitWriter.encodedSize("&ea", "\u00e9\u20ac"));
+
+    HitWriter hitWriter = HitWriter.event(0).setAction("a");
+    int size = hitWriter.estimatedSize();
+    String product = hitWriter.addProduct();
+    hitWriter.setProductId(product, "p").setProductCustomMetric(product, 1, 2);
+    assertTrue(hitWriter.estimatedSize() > size);
+    hitWriter.removeLastProduct();
+    assertEquals(size, hitWriter.estimatedSize());
+    assertEquals(0, hitWriter.productCount());
+    assertEquals(new HitBuilders.EventBuilder().setAction("a").build(), hitWriter.build());
+  }
+
+  /** Every hit sent to the tracker, checking there are {@code expected} unless it is 0. */
+  @SuppressWarnings("unchecked")
+  private List<Map<String, String>> sentHits(int expected) {
+    ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+    verify(tracker, atLeastOnce()).send(captor.capture());
+    List<Map<String, String>> hits = (List) captor.getAllValues();
+    if (expected > 0) {
+      assertEquals(expected, hits.size());
+    }
+    return hits;
+  }
+
   @Test public void completedOrderEventsAreDetectedCorrectly() {
-    Pattern pattern = GoogleAnalyticsIntegration.COMPLETED_ORDER_PATTERN;
+    Pattern pattern = EventClassifier.COMPLETED_ORDER_PATTERN;
 
     String[] shouldMatch = new String[]{
             "Completed Order",
@@ -621,7 +1915,7 @@ public class GoogleAnalyticsTest {
 
   @Test public void productEventsAreAreDetectedCorrectly() {
 
-    Pattern pattern = GoogleAnalyticsIntegration.PRODUCT_EVENT_NAME_PATTERN;
+    Pattern pattern = EventClassifier.PRODUCT_EVENT_NAME_PATTERN;
 
     String[] shouldMatch = new String[]{
             "Viewed Product Category",
@@ -641,6 +1935,362 @@ public class GoogleAnalyticsTest {
 
   }
 
+  @Test public void eventClassifierResolvesEventTypes() {
+    EventClassifier classifier = new EventClassifier();
+
+    assertEquals(EventType.ORDER_COMPLETED, classifier.classify("Order Completed"));
+    assertEquals(EventType.ORDER_COMPLETED, classifier.classify("completed order"));
+    assertEquals(EventType.PRODUCT_VIEWED, classifier.classify("Product Viewed"));
+    assertEquals(EventType.PRODUCT_VIEWED, classifier.classify("Viewed Product Category"));
+    assertEquals(EventType.PRODUCT_ADDED, classifier.classify("Added Product"));
+    assertEquals(EventType.PRODUCT_ADDED, classifier.classify("Product Added"));
+    assertEquals(EventType.PRODUCT_REMOVED, classifier.classify("Removed Product"));
+    assertEquals(EventType.DEEP_LINK, classifier.classify("Deep Link Opened"));
+    assertEquals(EventType.PLAIN, classifier.classify("deep link opened"));
+    assertEquals(EventType.PLAIN, classifier.classify("Signed Up"));
+    assertEquals(EventType.PLAIN, classifier.classify(null));
+  }
+
+  @Test public void eventClassifierIsBounded() {
+    EventClassifier classifier = new EventClassifier(2);
+
+    classifier.classify("a");
+    classifier.classify("b");
+    classifier.classify("a");
+    classifier.classify("c");
+
+    assertEquals(2, classifier.size());
+    // Repeated lookups are still answered correctly once a name has been evicted.
+    assertEquals(EventType.PLAIN, classifier.classify("b"));
+    assertEquals(EventType.ORDER_COMPLETED, classifier.classify("Order Completed"));
+    assertEquals(2, classifier.size());
+  }
+
+  @Test public void eventClassifierResolvesConfiguredEcommerceEvents() {
+    EventClassifier classifier = EventClassifier.fromSettings(new ValueMap()
+        .putValue("Cart Item Added", "add")
+        .putValue("Basket Removed", "remove")
+        .putValue("Checkout Started", "checkout")
+        .putValue("Order Refunded", "refund")
+        .putValue("Completed Order", "detail")
+        .putValue("Invalid", "buy"), MappingLogger.NONE);
+
+    assertEquals(EventType.PRODUCT_ADDED, classifier.classify("Cart Item Added"));
+    assertEquals(EventType.PRODUCT_ADDED, classifier.classify("cart item added"));
+    assertEquals(EventType.PRODUCT_REMOVED, classifier.classify("Basket Removed"));
+    assertEquals(EventType.CHECKOUT_STARTED, classifier.classify("Checkout Started"));
+    assertEquals(EventType.ORDER_REFUNDED, classifier.classify("Order Refunded"));
+    // Configured names take precedence over the built-in patterns, which still apply otherwise.
+    assertEquals(EventType.PRODUCT_VIEWED, classifier.classify("Completed Order"));
+    assertEquals(EventType.ORDER_COMPLETED, classifier.classify("Order Completed"));
+    assertEquals(EventType.PLAIN, classifier.classify("Invalid"));
+  }
+
+  @Test public void trackConfiguredEcommerceEvents() {
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("ecommerceEvents", new ValueMap().putValue("Cart Item Added", "add")
+                .putValue("Order Refunded", "refund")), Logger.with(VERBOSE));
+
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Cart Item Added")
+        .properties(new Properties().putProductId("p").putName("P").putPrice(2))
+        .build());
+    verify(tracker).send(new HitBuilders.EventBuilder()
+        .addProduct(new com.google.android.gms.analytics.ecommerce.Product().setId("p")
+            .setName("P").setCategory("All").setPrice(2).setQuantity(0))
+        .setProductAction(new ProductAction(ProductAction.ACTION_ADD))
+        .setAction("Product Added")
+        .setCategory("EnhancedEcommerce")
+        .build());
+
+    integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Refunded")
+        .properties(new Properties().putOrderId("o1")
+            .putProducts(new Product("p", null, 2).putValue("quantity", 1)))
+        .build());
+    Map<String, String> refund = new HitBuilders.EventBuilder()
+        .addProduct(new com.google.android.gms.analytics.ecommerce.Product().setId("p")
+            .setQuantity(1))
+        .setProductAction(new ProductAction(ProductAction.ACTION_REFUND))
+        .setCategory("EnhancedEcommerce")
+        .build();
+    refund.put("&ti", "o1");
+    verify(tracker).send(refund);
+  }
+
+  @Test public void replayCorpus() throws Exception {
+    InMemoryGoogleAnalytics googleAnalytics = new InMemoryGoogleAnalytics();
+    integration = new GoogleAnalyticsIntegration(application, googleAnalytics,
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID)
+            .putValue("dimensions", new ValueMap().putValue("plan", "dimension1")),
+        Logger.with(NONE));
+    String corpus = "{\"type\":\"identify\",\"userId\":\"u\",\"traits\":{\"plan\":\"free\"}}\n"
+        + "{\"type\":\"screen\",\"anonymousId\":\"a\",\"name\":\"Home\"}\n"
+        + "{\"type\":\"track\",\"userId\":\"u\",\"event\":\"Button Clicked\","
+        + "\"properties\":{\"category\":\"ui\",\"plan\":\"pro\"}}\n"
+        + "{\"type\":\"group\",\"userId\":\"u\",\"groupId\":\"g\"}\n"
+        + "\n"
+        + "not json\n";
+
+    PayloadReplay.Report report = new PayloadReplay(integration, 0) //
+        .replay(new BufferedReader(new StringReader(corpus)));
+
+    assertEquals(3, report.calls);
+    assertEquals(2, report.skippedLines);
+    assertEquals(1, report.calls(CallType.TRACK));
+    assertEquals(1, report.calls(CallType.SCREEN));
+    assertEquals(1, report.calls(CallType.IDENTIFY));
+    assertTrue(report.percentileNanos(CallType.TRACK, 99) > 0);
+    assertEquals(2, report.metrics.totalHits());
+    assertEquals(1, googleAnalytics.dispatches());
+
+    RecordingTracker recorded = googleAnalytics.tracker(TRACKING_ID);
+    assertEquals("Home", recorded.screenName());
+    assertTrue(recorded.parameters().isEmpty());
+    List<Map<String, String>> hits = recorded.hits();
+    assertEquals(2, hits.size());
+    assertEquals("free", hits.get(0).get("&cd1"));
+    assertEquals("Button Clicked", hits.get(1).get("&ea"));
+    assertEquals("ui", hits.get(1).get("&ec"));
+    assertEquals("pro", hits.get(1).get("&cd1"));
+
+    StringWriter stream = new StringWriter();
+    PayloadReplay.writeHits(googleAnalytics, stream);
+    String[] lines = stream.toString().split("\n");
+    assertEquals(2, lines.length);
+    assertTrue(lines[1], lines[1].contains("\"trackingId\":\"foo\""));
+    assertTrue(lines[1], lines[1].contains("\"&ea\":\"Button Clicked\""));
+  }
+
+  @Test public void replayIsPaced() throws Exception {
+    integration = new GoogleAnalyticsIntegration(application, new InMemoryGoogleAnalytics(),
+        new ValueMap().putValue("mobileTrackingId", TRACKING_ID), Logger.with(NONE));
+    StringBuilder corpus = new StringBuilder();
+    for (int i = 0; i < 5; i++) {
+      corpus.append("{\"type\":\"track\",\"anonymousId\":\"a\",\"event\":\"e\"}\n");
+    }
+
+    // 5 calls at 100 a second are 40ms apart from the first.
+    PayloadReplay.Report report = new PayloadReplay(integration, 100) //
+        .replay(new BufferedReader(new StringReader(corpus.toString())));
+
+    assertEquals(5, report.calls);
+    assertTrue(String.valueOf(report.elapsedNanos),
+        report.elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(40));
+    assertTrue(String.valueOf(report.throughput()), report.throughput() <= 125);
+  }
+
+  @Test public void measurementProtocolBatchesHitsOverOneConnection() throws Exception {
+    MeasurementProtocolServer server = new MeasurementProtocolServer();
+    try {
+      BatchTransport transport =
+          new BatchTransport(server.url(), CLIENT_ID, 100, 0, Logger.with(NONE));
+      Tracker tracker =
+          new MeasurementProtocolTracker(TRACKING_ID, "App", "1.0", transport);
+      for (int i = 0; i < 45; i++) {
+        tracker.send(new HitBuilders.EventBuilder().setCategory("c").setAction("e" + i).build());
+      }
+      transport.dispatch().get(5, TimeUnit.SECONDS);
+
+      assertEquals(Collections.emptyList(), server.errors());
+      List<List<Map<String, String>>> batches = server.batches();
+      assertEquals(3, batches.size());
+      assertEquals(20, batches.get(0).size());
+      assertEquals(20, batches.get(1).size());
+      assertEquals(5, batches.get(2).size());
+      assertEquals(3, transport.batches());
+      assertEquals(0, transport.queued());
+      // Every batch went over the same kept-alive connection.
+      assertEquals(1, server.clientPorts().size());
+
+      Map<String, String> hit = server.hits().get(44);
+      assertEquals(TRACKING_ID, hit.get("tid"));
+      assertEquals("client", hit.get("cid"));
+      assertEquals("App", hit.get("an"));
+      assertEquals("1.0", hit.get("av"));
+      assertEquals("event", hit.get("t"));
+      assertEquals("e44", hit.get("ea"));
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test public void measurementProtocolLoadsTheClientIdOnTheTransportThread() throws Exception {
+    MeasurementProtocolServer server = new MeasurementProtocolServer();
+    try {
+      final List<Thread> loads = new CopyOnWriteArrayList<>();
+      BatchTransport transport = new BatchTransport(server.url(), new Callable<String>() {
+        @Override public String call() {
+          loads.add(Thread.currentThread());
+          return "client";
+        }
+      }, 100, 0, Logger.with(NONE));
+      Tracker tracker = new MeasurementProtocolTracker(TRACKING_ID, "App", "1.0", transport);
+      tracker.send(new HitBuilders.EventBuilder().setAction("e").build());
+      assertTrue(loads.isEmpty());
+
+      transport.dispatch().get(5, TimeUnit.SECONDS);
+      tracker.send(new HitBuilders.EventBuilder().setAction("f").build());
+      transport.dispatch().get(5, TimeUnit.SECONDS);
+
+      assertEquals(1, loads.size());
+      assertNotSame(Thread.currentThread(), loads.get(0));
+      assertEquals("client", server.hits().get(1).get("cid"));
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test public void measurementProtocolRetriesServerErrors() throws Exception {
+    MeasurementProtocolServer server = new MeasurementProtocolServer();
+    try {
+      BatchTransport transport =
+          new BatchTransport(server.url(), CLIENT_ID, 100, 0, Logger.with(NONE));
+      Tracker tracker =
+          new MeasurementProtocolTracker(TRACKING_ID, "App", "1.0", transport);
+      server.respondNextWith(503);
+      for (int i = 0; i < 3; i++) {
+        tracker.send(new HitBuilders.EventBuilder().setAction("e" + i).build());
+      }
+
+      transport.dispatch().get(5, TimeUnit.SECONDS);
+      assertEquals(1, transport.failedBatches());
+      assertEquals(3, transport.queued());
+      assertTrue(server.batches().isEmpty());
+
+      transport.dispatch().get(5, TimeUnit.SECONDS);
+      assertEquals(0, transport.queued());
+      assertEquals(1, server.batches().size());
+      assertEquals("e0", server.hits().get(0).get("ea"));
+      assertEquals(0, transport.droppedHits());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test public void measurementProtocolBacksOffAfterAFailedBatch() throws Exception {
+    MeasurementProtocolServer server = new MeasurementProtocolServer();
+    try {
+      BatchTransport transport =
+          new BatchTransport(server.url(), CLIENT_ID, 100, 0, Logger.with(NONE));
+      Tracker tracker =
+          new MeasurementProtocolTracker(TRACKING_ID, "App", "1.0", transport);
+      server.respondNextWith(503);
+      for (int i = 0; i < BatchTransport.MAX_HITS_PER_BATCH; i++) {
+        tracker.send(new HitBuilders.EventBuilder().setAction("e" + i).build());
+      }
+      long deadline = System.currentTimeMillis() + 5000;
+      while (transport.failedBatches() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, transport.failedBatches());
+
+      // Another full batch doesn't go out on its own while backing off.
+      for (int i = 0; i < BatchTransport.MAX_HITS_PER_BATCH; i++) {
+        tracker.send(new HitBuilders.EventBuilder().setAction("f" + i).build());
+      }
+      Thread.sleep(100);
+      assertEquals(1, transport.batches());
+
+      // An explicit dispatch still sends, and ends the backoff once it succeeds.
+      transport.dispatch().get(5, TimeUnit.SECONDS);
+      assertEquals(0, transport.queued());
+      assertEquals(2, server.batches().size());
+      for (int i = 0; i < BatchTransport.MAX_HITS_PER_BATCH; i++) {
+        tracker.send(new HitBuilders.EventBuilder().setAction("g" + i).build());
+      }
+      deadline = System.currentTimeMillis() + 5000;
+      while (server.batches().size() < 3 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(3, server.batches().size());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test public void measurementProtocolDispatchesPeriodically() throws Exception {
+    MeasurementProtocolServer server = new MeasurementProtocolServer();
+    try {
+      BatchTransport transport =
+          new BatchTransport(server.url(), CLIENT_ID, 100, 20, Logger.with(NONE));
+      Tracker tracker =
+          new MeasurementProtocolTracker(TRACKING_ID, "App", "1.0", transport);
+      tracker.send(new HitBuilders.EventBuilder().setAction("e").build());
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (server.hits().isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, server.hits().size());
+      assertEquals(0, transport.queued());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test public void measurementProtocolDropsRejectedBatches() throws Exception {
+    MeasurementProtocolServer server = new MeasurementProtocolServer();
+    try {
+      BatchTransport transport =
+          new BatchTransport(server.url(), CLIENT_ID, 2, 0, Logger.with(NONE));
+      Tracker tracker =
+          new MeasurementProtocolTracker(TRACKING_ID, "App", "1.0", transport);
+      server.respondNextWith(400);
+      for (int i = 0; i < 3; i++) {
+        tracker.send(new HitBuilders.EventBuilder().setAction("e" + i).build());
+      }
+
+      transport.dispatch().get(5, TimeUnit.SECONDS);
+      // One pushed out of the full queue, two rejected.
+      assertEquals(3, transport.droppedHits());
+      assertEquals(0, transport.queued());
+      assertEquals(0, transport.failedBatches());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test public void measurementProtocolIntegration() throws Exception {
+    MeasurementProtocolServer server = new MeasurementProtocolServer();
+    try {
+      BatchTransport transport =
+          new BatchTransport(server.url(), CLIENT_ID, 100, 0, Logger.with(NONE));
+      integration = new GoogleAnalyticsIntegration(application,
+          new MeasurementProtocolGoogleAnalytics("App", "1.0", transport),
+          new ValueMap().putValue("mobileTrackingId", TRACKING_ID).putValue("anonymizeIp", true),
+          Logger.with(NONE));
+
+      integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("Home").build());
+      integration.track(new TrackPayload.Builder().anonymousId("1234").event("Sign Up &")
+          .properties(new Properties().putValue("category", "accounts")).build());
+      transport.dispatch().get(5, TimeUnit.SECONDS);
+
+      assertEquals(Collections.emptyList(), server.errors());
+      List<Map<String, String>> hits = server.hits();
+      assertEquals(2, hits.size());
+      assertEquals("screenview", hits.get(0).get("t"));
+      assertEquals("Home", hits.get(0).get("cd"));
+      assertEquals("1", hits.get(0).get("aip"));
+      assertEquals("event", hits.get(1).get("t"));
+      assertEquals("Sign Up &", hits.get(1).get("ea"));
+      assertEquals("accounts", hits.get(1).get("ec"));
+      assertEquals("Home", hits.get(1).get("cd"));
+      assertNull(integration.getUnderlyingInstance());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test public void measurementProtocolExceptionDescription() {
+    Exception e = new IllegalStateException();
+    e.setStackTrace(new StackTraceElement[] {
+        new StackTraceElement("com.example.MainActivity", "onCreate", "MainActivity.java", 42)
+    });
+
+    assertEquals("IllegalStateException (@MainActivity:onCreate:42) {main}",
+        MeasurementProtocolTracker.describe(new Thread("main"), e));
+  }
+
   private static void assertPatternCases(Pattern pattern, String[] shouldMatch, String[] shouldNotMatch) {
     for (String text : shouldMatch) {
       String msg = String.format("Expected <%s> to match pattern <%s> but did not.", text, pattern.pattern());
@@ -0,0 +1,150 @@
+package com.segment.analytics.android.integrations.google.analytics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local stand-in for the Measurement Protocol {@code /batch} endpoint. It checks requests the
+ * way Google Analytics would (gzipped POST bodies of at most 20 hits, each with {@code v=1},
+ * {@code tid}, {@code cid}, {@code t}, and the app fields {@code an} and {@code av} of an app
+ * tracking property) and records the hits of every valid batch, along with
+ * the client ports it was sent from, to tell whether connections were reused.
+ */
+class MeasurementProtocolServer {
+  private final HttpServer server;
+  private final List<List<Map<String, String>>> batches = new ArrayList<>();
+  private final Set<Integer> clientPorts = new LinkedHashSet<>();
+  private final List<String> errors = new ArrayList<>();
+  private final Deque<Integer> responseCodes = new ArrayDeque<>();
+
+  MeasurementProtocolServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/batch", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        int code = handleBatch(exchange);
+        exchange.sendResponseHeaders(code, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  URL url() throws IOException {
+    return new URL("http", "127.0.0.1", server.getAddress().getPort(), "/batch");
+  }
+
+  /** Answer the next batch with {@code code} instead of validating it. */
+  synchronized void respondNextWith(int code) {
+    responseCodes.addLast(code);
+  }
+
+  synchronized List<List<Map<String, String>>> batches() {
+    return new ArrayList<>(batches);
+  }
+
+  synchronized List<Map<String, String>> hits() {
+    List<Map<String, String>> hits = new ArrayList<>();
+    for (List<Map<String, String>> batch : batches) {
+      hits.addAll(batch);
+    }
+    return hits;
+  }
+
+  synchronized Set<Integer> clientPorts() {
+    return Collections.unmodifiableSet(new LinkedHashSet<>(clientPorts));
+  }
+
+  /** Why requests were rejected, empty if all were valid. */
+  synchronized List<String> errors() {
+    return new ArrayList<>(errors);
+  }
+
+  void shutdown() {
+    server.stop(0);
+  }
+
+  private synchronized int handleBatch(HttpExchange exchange) throws IOException {
+    clientPorts.add(exchange.getRemoteAddress().getPort());
+    byte[] body = readFully(exchange.getRequestBody());
+    if (!responseCodes.isEmpty()) {
+      return responseCodes.removeFirst();
+    }
+    if (!"POST".equals(exchange.getRequestMethod())) {
+      return reject("Expected a POST, got " + exchange.getRequestMethod());
+    }
+    if (!"gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      return reject("Expected a gzipped body");
+    }
+    byte[] hits = readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+    String[] lines = new String(hits, "UTF-8").split("\n");
+    if (lines.length > BatchTransport.MAX_HITS_PER_BATCH) {
+      return reject("Too many hits in a batch: " + lines.length);
+    }
+    List<Map<String, String>> batch = new ArrayList<>(lines.length);
+    for (String line : lines) {
+      if (line.length() > BatchTransport.MAX_HIT_BYTES) {
+        return reject("Hit too large: " + line.length());
+      }
+      Map<String, String> hit = parse(line);
+      if (!"1".equals(hit.get("v")) || hit.get("tid") == null || hit.get("cid") == null
+          || hit.get("t") == null || hit.get("qt") == null
+          || hit.get("an") == null || hit.get("av") == null) {
+        return reject("Missing required parameters: " + line);
+      }
+      batch.add(hit);
+    }
+    batches.add(batch);
+    return 200;
+  }
+
+  private int reject(String error) {
+    errors.add(error);
+    return 400;
+  }
+
+  private static Map<String, String> parse(String hit) throws IOException {
+    Map<String, String> params = new LinkedHashMap<>();
+    for (String param : hit.split("&")) {
+      int equals = param.indexOf('=');
+      if (equals < 0) {
+        throw new IOException("Malformed parameter " + param);
+      }
+      params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"),
+          URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+    }
+    return params;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}